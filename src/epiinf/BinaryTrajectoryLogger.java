@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.models.EpidemicModel;
+import epiinf.util.BinaryTrajectoryWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Logs trajectories to a separate binary file readable using " +
+        "BinaryTrajectoryReader.  The column written to the main log holds " +
+        "the index of the corresponding binary record.")
+public class BinaryTrajectoryLogger extends BEASTObject implements Loggable {
+
+    public Input<SMCTreeDensity> treeDensityInput = new Input<>("treeDensity",
+            "SMC Tree density from which to log trajectories.",
+            Input.Validate.REQUIRED);
+
+    public Input<String> fileNameInput = new Input<>("fileName",
+            "Name of binary trajectory log file.",
+            Input.Validate.REQUIRED);
+
+    public Input<Boolean> compressInput = new Input<>("compress",
+            "Compress each logged trajectory.  Defaults to false.", false);
+
+    public Input<Boolean> logMostRecentTrajectoryInput = new Input<>("logMostRecentTrajectory",
+            "Log trajectory from most recent density evaluation rather than " +
+                    "the conditioned trajectory.  Does not itself force " +
+                    "recalculation.  Defaults to false.", false);
+
+    public static final String[] COLUMN_NAMES = {
+            "age", "S", "I", "R", "cumulativeInfections",
+            "incidence", "Re", "algorithm"};
+
+    SMCTreeDensity treeDensity;
+    EpidemicModel model;
+
+    BinaryTrajectoryWriter writer;
+    double[][] columns = new double[COLUMN_NAMES.length][0];
+
+    public BinaryTrajectoryLogger() { }
+
+    @Override
+    public void initAndValidate() {
+        treeDensity = treeDensityInput.get();
+        model = treeDensity.modelInput.get();
+
+        if (logMostRecentTrajectoryInput.get())
+            treeDensity.requireLastEvaluatedTrajectory();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        try {
+            writer = new BinaryTrajectoryWriter(new File(fileNameInput.get()),
+                    COLUMN_NAMES, compressInput.get());
+        } catch (IOException ex) {
+            throw new RuntimeException("Error opening binary trajectory log '"
+                    + fileNameInput.get() + "'.");
+        }
+
+        if (getID() == null)
+            out.print("trajectoryRecord\t");
+        else
+            out.print(getID() + "\t");
+    }
+
+    @Override
+    public void log(long nSample, PrintStream out) {
+
+        EpidemicTrajectory traj;
+        if (logMostRecentTrajectoryInput.get())
+            traj = treeDensity.getLastEvaluatedTrajectory();
+        else
+            traj = treeDensity.getConditionedTrajectory();
+
+        if (traj == null || traj.getStateList().isEmpty()) {
+            out.print("NA\t");
+            return;
+        }
+
+        List<EpidemicState> states = traj.getStateList();
+        int n = states.size();
+        if (columns[0].length < n) {
+            for (int c=0; c<columns.length; c++)
+                columns[c] = new double[n];
+        }
+
+        DerivedTrajectorySeries series = treeDensity.getDerivedSeries(traj);
+
+        double origin = traj.getOrigin();
+        for (int i=0; i<n; i++) {
+            EpidemicState state = states.get(i);
+
+            columns[0][i] = origin - state.time;
+            columns[1][i] = state.S;
+            columns[2][i] = state.I;
+            columns[3][i] = state.R;
+            columns[4][i] = series.cumulativeInfections[i];
+            columns[5][i] = series.incidence[i];
+            columns[6][i] = series.reproductiveNumber[i];
+            columns[7][i] = state.algorithm != null ? state.algorithm.ordinal() : 0;
+        }
+
+        int record = writer.getRecordCount();
+        try {
+            writer.writeSample(nSample, origin, n, columns);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error writing to binary trajectory log '"
+                    + fileNameInput.get() + "'.");
+        }
+
+        out.print(record + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (writer == null)
+            return;
+
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("Error closing binary trajectory log '"
+                    + fileNameInput.get() + "'.");
+        }
+    }
+}
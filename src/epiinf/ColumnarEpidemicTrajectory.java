@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Description;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Epidemic trajectory whose states and events are stored in primitive
+ * arrays rather than as individual objects, reducing the memory used by
+ * large simulated trajectories several-fold.
+ *
+ * The state and event lists are read-only views which create a new
+ * state or event object each time an element is accessed.  Modifying
+ * these objects does not modify the trajectory.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Epidemic trajectory stored in columnar form.")
+public class ColumnarEpidemicTrajectory extends EpidemicTrajectory {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final EpidemicState.Algorithm[] algorithms = EpidemicState.Algorithm.values();
+
+    private double[] stateTimes, S, I, R, cumulativeInfections;
+    private int[] modelIntervalIdx;
+    private byte[] algorithm;
+    private int nStates;
+
+    private double[] eventTimes;
+    private byte[] eventTypes;
+    private int[] eventMultiplicities;
+    private int nEvents;
+
+    public ColumnarEpidemicTrajectory() {
+        stateTimes = new double[INITIAL_CAPACITY];
+        S = new double[INITIAL_CAPACITY];
+        I = new double[INITIAL_CAPACITY];
+        R = new double[INITIAL_CAPACITY];
+        cumulativeInfections = new double[INITIAL_CAPACITY];
+        modelIntervalIdx = new int[INITIAL_CAPACITY];
+        algorithm = new byte[INITIAL_CAPACITY];
+
+        eventTimes = new double[INITIAL_CAPACITY];
+        eventTypes = new byte[INITIAL_CAPACITY];
+        eventMultiplicities = new int[INITIAL_CAPACITY];
+
+        stateList = new StateView();
+        eventList = new EventView();
+    }
+
+    /**
+     * Remove all states and events.
+     */
+    public void clear() {
+        nStates = 0;
+        nEvents = 0;
+    }
+
+    /**
+     * Append a copy of the given state.
+     *
+     * @param state state to append
+     */
+    public void addState(EpidemicState state) {
+        if (nStates == stateTimes.length) {
+            int capacity = 2*nStates;
+            stateTimes = Arrays.copyOf(stateTimes, capacity);
+            S = Arrays.copyOf(S, capacity);
+            I = Arrays.copyOf(I, capacity);
+            R = Arrays.copyOf(R, capacity);
+            cumulativeInfections = Arrays.copyOf(cumulativeInfections, capacity);
+            modelIntervalIdx = Arrays.copyOf(modelIntervalIdx, capacity);
+            algorithm = Arrays.copyOf(algorithm, capacity);
+        }
+
+        stateTimes[nStates] = state.time;
+        S[nStates] = state.S;
+        I[nStates] = state.I;
+        R[nStates] = state.R;
+        cumulativeInfections[nStates] = state.cumulativeInfections;
+        modelIntervalIdx[nStates] = state.modelIntervalIdx;
+        algorithm[nStates] = (byte)(state.algorithm != null ? state.algorithm.ordinal() : 0);
+        nStates += 1;
+    }
+
+    /**
+     * Append an event.
+     *
+     * @param time time of event
+     * @param type type of event
+     * @param multiplicity multiplicity of event
+     */
+    public void addEvent(double time, int type, int multiplicity) {
+        if (nEvents == eventTimes.length) {
+            int capacity = 2*nEvents;
+            eventTimes = Arrays.copyOf(eventTimes, capacity);
+            eventTypes = Arrays.copyOf(eventTypes, capacity);
+            eventMultiplicities = Arrays.copyOf(eventMultiplicities, capacity);
+        }
+
+        eventTimes[nEvents] = time;
+        eventTypes[nEvents] = (byte)type;
+        eventMultiplicities[nEvents] = multiplicity;
+        nEvents += 1;
+    }
+
+    /**
+     * Append a copy of the given event.
+     *
+     * @param event event to append
+     */
+    public void addEvent(EpidemicEvent event) {
+        addEvent(event.time, event.type, event.multiplicity);
+    }
+
+    @Override
+    public void assignFrom(EpidemicTrajectory otherTrajectory) {
+        clear();
+
+        for (int i=0; i<otherTrajectory.getStateCount(); i++)
+            addState(otherTrajectory.getStateList().get(i));
+
+        for (int i=0; i<otherTrajectory.getEventCount(); i++)
+            addEvent(otherTrajectory.getEventTime(i),
+                    otherTrajectory.getEventType(i),
+                    otherTrajectory.getEventMultiplicity(i));
+
+        origin = otherTrajectory.getOrigin();
+    }
+
+    @Override
+    public void truncateAfter(double time) {
+        while (nEvents > 0 && nStates > 0 && eventTimes[nEvents-1] > time) {
+            nEvents -= 1;
+            nStates -= 1;
+        }
+    }
+
+    /*
+     * Direct access to columns
+     */
+
+    @Override
+    public int getStateCount() {
+        return nStates;
+    }
+
+    @Override
+    public double getStateTime(int i) {
+        return stateTimes[checkState(i)];
+    }
+
+    @Override
+    public double getS(int i) {
+        return S[checkState(i)];
+    }
+
+    @Override
+    public double getI(int i) {
+        return I[checkState(i)];
+    }
+
+    @Override
+    public double getR(int i) {
+        return R[checkState(i)];
+    }
+
+    @Override
+    public double getCumulativeInfections(int i) {
+        return cumulativeInfections[checkState(i)];
+    }
+
+    @Override
+    public int getEventCount() {
+        return nEvents;
+    }
+
+    @Override
+    public double getEventTime(int i) {
+        return eventTimes[checkEvent(i)];
+    }
+
+    @Override
+    public int getEventType(int i) {
+        return eventTypes[checkEvent(i)];
+    }
+
+    @Override
+    public int getEventMultiplicity(int i) {
+        return eventMultiplicities[checkEvent(i)];
+    }
+
+    private int checkState(int i) {
+        if (i < 0 || i >= nStates)
+            throw new IndexOutOfBoundsException("State index " + i + " out of range.");
+        return i;
+    }
+
+    private int checkEvent(int i) {
+        if (i < 0 || i >= nEvents)
+            throw new IndexOutOfBoundsException("Event index " + i + " out of range.");
+        return i;
+    }
+
+    /*
+     * List views
+     */
+
+    private class StateView extends AbstractList<EpidemicState> implements RandomAccess {
+        @Override
+        public EpidemicState get(int i) {
+            checkState(i);
+
+            EpidemicState state = new EpidemicState(S[i], I[i], R[i], cumulativeInfections[i]);
+            state.time = stateTimes[i];
+            state.modelIntervalIdx = modelIntervalIdx[i];
+            state.algorithm = algorithms[algorithm[i]];
+            return state;
+        }
+
+        @Override
+        public int size() {
+            return nStates;
+        }
+    }
+
+    private class EventView extends AbstractList<EpidemicEvent> implements RandomAccess {
+        @Override
+        public EpidemicEvent get(int i) {
+            checkEvent(i);
+
+            return new EpidemicEvent(eventTimes[i], eventTypes[i], eventMultiplicities[i]);
+        }
+
+        @Override
+        public int size() {
+            return nEvents;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import epiinf.models.EpidemicModel;
+
+import java.util.List;
+
+/**
+ * Quantities derived from each state of an epidemic trajectory.  The
+ * arrays are indexed in the same way as the trajectory's state list and
+ * must not be modified.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class DerivedTrajectorySeries {
+
+    public final double[] incidence, reproductiveNumber, cumulativeInfections;
+
+    /**
+     * Compute derived quantities for each state of a trajectory, using
+     * the current parameters of the given model.
+     *
+     * @param model epidemic model
+     * @param states trajectory state list
+     */
+    public DerivedTrajectorySeries(EpidemicModel model, List<EpidemicState> states) {
+        int n = states.size();
+        incidence = new double[n];
+        reproductiveNumber = new double[n];
+        cumulativeInfections = new double[n];
+
+        for (int i=0; i<n; i++) {
+            EpidemicState state = states.get(i);
+
+            model.calculatePropensities(state);
+            incidence[i] = model.propensities[EpidemicEvent.INFECTION];
+            reproductiveNumber[i] = model.propensities[EpidemicEvent.INFECTION]/
+                    (model.propensities[EpidemicEvent.RECOVERY] + model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]);
+            cumulativeInfections[i] = state.cumulativeInfections;
+        }
+    }
+
+    /**
+     * @return number of states
+     */
+    public int size() {
+        return incidence.length;
+    }
+}
@@ -55,11 +55,22 @@ public class EpidemicEvent extends Event {
         this.multiplicity = multiplicity;
     }
 
+    /**
+     * @param type event type
+     * @return true iff events of this type are sampling events
+     */
+    public static boolean isSample(int type) {
+        return type == RHO_SAMPLE
+                || type == PSI_SAMPLE_REMOVE
+                || type == PSI_SAMPLE_NOREMOVE
+                || type == OTHER_SAMPLE;
+    }
+
     /**
      * @return true iff this is a sampling event
      */
     public boolean isSample() {
-        return type >= 2;
+        return isSample(type);
     }
 
     /**
@@ -89,6 +89,105 @@ public class EpidemicTrajectory extends BEASTObject implements Loggable {
         return origin;
     }
     
+    /*
+     * Element access.  These avoid materializing state and event objects
+     * for trajectories stored in columnar form.
+     */
+
+    /**
+     * @return number of states in trajectory
+     */
+    public int getStateCount() {
+        return getStateList() != null ? getStateList().size() : 0;
+    }
+
+    /**
+     * @param i state index
+     * @return time of state
+     */
+    public double getStateTime(int i) {
+        return getStateList().get(i).time;
+    }
+
+    /**
+     * @param i state index
+     * @return number of susceptibles
+     */
+    public double getS(int i) {
+        return getStateList().get(i).S;
+    }
+
+    /**
+     * @param i state index
+     * @return number of infecteds
+     */
+    public double getI(int i) {
+        return getStateList().get(i).I;
+    }
+
+    /**
+     * @param i state index
+     * @return number of recovereds
+     */
+    public double getR(int i) {
+        return getStateList().get(i).R;
+    }
+
+    /**
+     * @param i state index
+     * @return cumulative number of infections
+     */
+    public double getCumulativeInfections(int i) {
+        return getStateList().get(i).cumulativeInfections;
+    }
+
+    /**
+     * @return number of events in trajectory
+     */
+    public int getEventCount() {
+        return getEventList() != null ? getEventList().size() : 0;
+    }
+
+    /**
+     * @param i event index
+     * @return time of event
+     */
+    public double getEventTime(int i) {
+        return getEventList().get(i).time;
+    }
+
+    /**
+     * @param i event index
+     * @return type of event
+     */
+    public int getEventType(int i) {
+        return getEventList().get(i).type;
+    }
+
+    /**
+     * @param i event index
+     * @return multiplicity of event
+     */
+    public int getEventMultiplicity(int i) {
+        return getEventList().get(i).multiplicity;
+    }
+
+    /**
+     * Remove events occurring after the given time, together with the
+     * same number of states from the end of the trajectory.
+     *
+     * @param time time after which to remove events
+     */
+    public void truncateAfter(double time) {
+        List<EpidemicEvent> events = getEventList();
+        List<EpidemicState> states = getStateList();
+
+        while (!events.isEmpty() && events.get(events.size()-1).time > time) {
+            events.remove(events.size()-1);
+            states.remove(states.size()-1);
+        }
+    }
+
     /**
      * Write trajectory state sequence to PrintStream.
      * 
@@ -22,8 +22,11 @@ import beast.base.core.Input;
 import beast.base.core.Loggable;
 import epiinf.distribs.SMCTreeDensity;
 import epiinf.models.EpidemicModel;
+import epiinf.util.AsyncLogWriter;
+import epiinf.util.DeduplicatedLogExpander;
 
 import java.io.PrintStream;
+import java.util.List;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -34,9 +37,28 @@ public class IncidenceLogger extends BEASTObject implements Loggable{
             "SMC Tree density from which to log trajectories.",
             Input.Validate.REQUIRED);
 
+    public Input<Boolean> deduplicateInput = new Input<>("deduplicate",
+            "Replace trajectories identical to the previously logged one " +
+                    "with a back-reference to that log line.  Expand these " +
+                    "using DeduplicatedLogExpander.  Defaults to false.", false);
+
+    public Input<String> asyncFileNameInput = new Input<>("asyncFileName",
+            "If provided, incidence trajectories are written to this file on " +
+                    "a background thread instead of to the log this logger " +
+                    "is attached to.");
+
+    public Input<Integer> asyncQueueCapacityInput = new Input<>("asyncQueueCapacity",
+            "Maximum number of trajectories awaiting output in asynchronous " +
+                    "mode before logging blocks.  Defaults to 16.", 16);
+
     SMCTreeDensity treeDensity;
     EpidemicModel model;
 
+    AsyncLogWriter asyncWriter;
+
+    EpidemicTrajectory lastLoggedTrajectory;
+    long lastLoggedSample;
+
     public IncidenceLogger() { }
 
     @Override
@@ -47,6 +69,13 @@ public class IncidenceLogger extends BEASTObject implements Loggable{
 
     @Override
     public void init(PrintStream out) {
+        if (asyncFileNameInput.get() != null) {
+            asyncWriter = new AsyncLogWriter(asyncFileNameInput.get(),
+                    getID() == null ? "trajectoryIncidence" : getID(),
+                    asyncQueueCapacityInput.get());
+            return;
+        }
+
         if (getID() == null)
             out.print("trajectoryIncidence\t");
         else
@@ -57,33 +86,67 @@ public class IncidenceLogger extends BEASTObject implements Loggable{
     public void log(long nSample, PrintStream out) {
         EpidemicTrajectory traj = treeDensity.getConditionedTrajectory();
 
-        if (traj.getStateList().isEmpty()) {
-            out.print("NA\t");
+        if (traj == null || traj.getStateList().isEmpty()) {
+            if (asyncWriter != null)
+                asyncWriter.submit(nSample, ps -> ps.print("NA"));
+            else
+                out.print("NA\t");
             return;
         }
 
-        boolean isFirst = true;
-        for (EpidemicState state : traj.getStateList()) {
-            if (!isFirst)
-                out.print(",");
+        // Trajectories are never modified once created, so identity
+        // implies that nothing has changed since the last log.
+        if (deduplicateInput.get() && traj == lastLoggedTrajectory) {
+            String backReference = DeduplicatedLogExpander.getBackReference(lastLoggedSample);
+            if (asyncWriter != null)
+                asyncWriter.submit(nSample, ps -> ps.print(backReference));
             else
-                isFirst = false;
+                out.print(backReference + "\t");
+            return;
+        }
+        lastLoggedTrajectory = traj;
+        lastLoggedSample = nSample;
 
-            if (traj.getOrigin() != null)
-                out.print(traj.getOrigin() - state.time);
+        List<EpidemicState> states = traj.getStateList();
+        Double origin = traj.getOrigin();
+
+        // Derived series depend on the current model parameters, so are
+        // obtained here even when formatting is deferred.
+        double[] incidence = treeDensity.getDerivedSeries(traj).incidence;
+
+        if (asyncWriter != null) {
+            asyncWriter.submit(nSample, ps -> printIncidence(ps, states, origin, incidence));
+        } else {
+            printIncidence(out, states, origin, incidence);
+            out.print("\t");
+        }
+    }
+
+    private static void printIncidence(PrintStream out, List<EpidemicState> states,
+                                       Double origin, double[] incidence) {
+        for (int i=0; i<states.size(); i++) {
+            EpidemicState state = states.get(i);
+
+            if (i > 0)
+                out.print(",");
+
+            if (origin != null)
+                out.print(origin - state.time);
             else
                 out.print(state.time);
 
             out.print(":");
 
-            model.calculatePropensities(state);
-            out.print(":" + model.propensities[EpidemicEvent.INFECTION]);
+            out.print(":" + incidence[i]);
         }
-
-        out.print("\t");
     }
 
 
     @Override
-    public void close(PrintStream out) { }
+    public void close(PrintStream out) {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+            asyncWriter = null;
+        }
+    }
 }
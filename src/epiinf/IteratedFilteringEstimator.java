@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.util.Randomizer;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SIRModel;
+import epiinf.models.SISModel;
+import epiinf.util.ReplacementSampler;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Maximum likelihood estimation of epidemic model parameters by iterated
+ * filtering (IF2, Ionides et al., PNAS, 2015).  Each particle pairs a
+ * parameter vector with a tree density particle filter.  In each
+ * iteration, the particles are filtered through the observed events,
+ * with their parameters perturbed by random walk noise before each event
+ * and resampled together with their filters.  The noise shrinks from one
+ * iteration to the next, so the particle swarm converges on the maximum
+ * likelihood estimate.
+ *
+ * Parameters whose starting values are all positive are perturbed on the
+ * log scale.  The origin, rate shift times and rho sampling times fix the
+ * timing of events, and S0 fixes the initial state, none of which can
+ * change while a filter is in progress.  These are always perturbed only
+ * at the start of each iteration.  Other parameters may be treated
+ * likewise by listing them in initialValueParameterNames.
+ *
+ * If a profile parameter is given, the estimation is repeated with that
+ * parameter fixed at each of the given values, yielding a profile
+ * likelihood.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Maximum likelihood estimation of epidemic model parameters " +
+        "by iterated filtering (IF2).")
+public class IteratedFilteringEstimator extends ParallelDensityRunnable {
+
+    public Input<String> initialValueParameterNamesInput = new Input<>(
+            "initialValueParameterNames",
+            "Space-delimited names, from parameterNames, of parameters " +
+                    "perturbed only at the start of each iteration.  The " +
+                    "origin, rate shift times, rho sampling times and S0 " +
+                    "are always treated this way.", "");
+
+    public Input<Integer> nParameterParticlesInput = new Input<>(
+            "nParameterParticles",
+            "Number of particles, each pairing a parameter vector with a " +
+                    "tree density filter.  Tree densities with few particles " +
+                    "are usually sufficient.", 200);
+
+    public Input<Integer> nIterationsInput = new Input<>(
+            "nIterations",
+            "Number of filtering iterations.", 50);
+
+    public Input<Double> perturbationSDInput = new Input<>(
+            "perturbationSD",
+            "Standard deviation of the perturbations applied in the first " +
+                    "iteration.  For parameters perturbed on the natural " +
+                    "scale this is relative to the magnitude of the " +
+                    "starting values.", 0.02);
+
+    public Input<Double> coolingFactorInput = new Input<>(
+            "coolingFactor",
+            "Factor by which perturbation standard deviations are " +
+                    "multiplied after each iteration.", 0.95);
+
+    public Input<Integer> nLikelihoodEvaluationsInput = new Input<>(
+            "nLikelihoodEvaluations",
+            "Number of independent density evaluations used to estimate " +
+                    "the log likelihood at each estimate.", 10);
+
+    public Input<String> profileParameterInput = new Input<>(
+            "profileParameter",
+            "Name of parameter or parameter element (e.g. infectionRate2) " +
+                    "for which to compute a profile likelihood.");
+
+    public Input<Function> profileValuesInput = new Input<>(
+            "profileValues",
+            "Values at which to fix the profile parameter.");
+
+    public Input<String> fileNameInput = new Input<>(
+            "fileName",
+            "Name of file to write estimates and their log likelihoods to.",
+            Validate.REQUIRED);
+
+    public Input<String> traceFileNameInput = new Input<>(
+            "traceFileName",
+            "Name of optional file to write the log likelihood and mean " +
+                    "parameters of every iteration to, for assessing " +
+                    "convergence.");
+
+    int nThetaParticles;
+    boolean[] logScale, initialValueOnly;
+    double[] naturalScale;
+    int profileColumn;
+
+    double[][] theta, newTheta;
+    double[] filterLogLikelihoods, newFilterLogLikelihoods, incrementalLogWeights;
+    SMCTreeDensity.FilterState[] filterStates, newFilterStates;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        requireIncrementalEvaluation();
+
+        nThetaParticles = nParameterParticlesInput.get();
+        if (nThetaParticles < 2)
+            throw new IllegalArgumentException("nParameterParticles must be at least 2.");
+
+        double[] start = getStartingValues();
+
+        initialValueOnly = new boolean[dim];
+        for (String name : parameterNames) {
+            if (isInitialValueInput(densities.get(0).getModel(), name)) {
+                for (int k : getColumnIndices(name))
+                    initialValueOnly[k] = true;
+            }
+        }
+
+        String ivpNames = initialValueParameterNamesInput.get().trim();
+        if (!ivpNames.isEmpty()) {
+            for (String name : ivpNames.split("\\s+")) {
+                for (int k : getColumnIndices(name))
+                    initialValueOnly[k] = true;
+            }
+        }
+
+        logScale = new boolean[dim];
+        naturalScale = new double[dim];
+        for (String name : parameterNames) {
+            int[] columns = getColumnIndices(name);
+
+            boolean allPositive = true;
+            for (int k : columns)
+                allPositive = allPositive && start[k] > 0.0;
+
+            for (int k : columns) {
+                logScale[k] = allPositive;
+                naturalScale[k] = start[k] != 0.0 ? Math.abs(start[k]) : 1.0;
+            }
+        }
+
+        profileColumn = -1;
+        if (profileParameterInput.get() != null) {
+            int[] columns = getColumnIndices(profileParameterInput.get());
+            if (columns.length != 1)
+                throw new IllegalArgumentException("Profile parameter must " +
+                        "identify a single parameter element.");
+
+            if (profileValuesInput.get() == null)
+                throw new IllegalArgumentException("Must specify profileValues " +
+                        "when profileParameter is given.");
+
+            profileColumn = columns[0];
+        }
+
+        theta = new double[nThetaParticles][dim];
+        newTheta = new double[nThetaParticles][dim];
+        filterLogLikelihoods = new double[nThetaParticles];
+        newFilterLogLikelihoods = new double[nThetaParticles];
+        incrementalLogWeights = new double[nThetaParticles];
+        filterStates = new SMCTreeDensity.FilterState[nThetaParticles];
+        newFilterStates = new SMCTreeDensity.FilterState[nThetaParticles];
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(densities.size());
+        try (PrintStream ps = new PrintStream(fileNameInput.get());
+             PrintStream tracePS = traceFileNameInput.get() != null
+                     ? new PrintStream(traceFileNameInput.get())
+                     : null) {
+
+            String header = "logLikelihood\tlogLikelihoodSE\t" + String.join("\t", columnNames);
+            if (profileColumn >= 0)
+                header = "profileValue\t" + header;
+            ps.println(header);
+
+            if (tracePS != null)
+                tracePS.println("pass\titeration\tlogLikelihood\t" + String.join("\t", columnNames));
+
+            int nPasses = profileColumn >= 0 ? profileValuesInput.get().getDimension() : 1;
+            for (int pass=0; pass<nPasses; pass++) {
+                double[] start = getStartingValues();
+                if (profileColumn >= 0)
+                    start[profileColumn] = profileValuesInput.get().getArrayValue(pass);
+
+                double[] estimate = estimate(executor, start, pass, tracePS);
+                double[] logLikelihood = evaluateLogLikelihood(executor, estimate);
+
+                StringBuilder sb = new StringBuilder();
+                if (profileColumn >= 0)
+                    sb.append(start[profileColumn]).append("\t");
+                sb.append(logLikelihood[0]).append("\t").append(logLikelihood[1]);
+                for (int k=0; k<dim; k++)
+                    sb.append("\t").append(estimate[k]);
+                ps.println(sb);
+                ps.flush();
+
+                Log.info.println("IF2 estimate" + (profileColumn >= 0
+                        ? " (" + columnNames[profileColumn] + " = " + start[profileColumn] + ")"
+                        : "") + ": " + Arrays.toString(estimate)
+                        + ", log likelihood " + logLikelihood[0]
+                        + " (SE " + logLikelihood[1] + ")");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param model epidemic model
+     * @param name name of model input
+     * @return true if the input fixes the timing of events or the initial
+     * state, so must not change while a filter is in progress
+     */
+    static boolean isInitialValueInput(EpidemicModel model, String name) {
+        Input<?> input = model.getInput(name);
+
+        if (model instanceof SIRModel && input == ((SIRModel) model).S0Input)
+            return true;
+
+        if (model instanceof SISModel && input == ((SISModel) model).S0Input)
+            return true;
+
+        return input == model.originInput
+                || input == model.infectionRateShiftTimesInput
+                || input == model.recoveryRateShiftTimesInput
+                || input == model.psiSamplingVariableShiftTimesInput
+                || input == model.removalProbShiftTimesInput
+                || input == model.rhoSamplingTimeInput;
+    }
+
+    /**
+     * Apply a random walk perturbation to a parameter vector.
+     *
+     * @param values parameter vector to perturb
+     * @param sd perturbation standard deviation
+     * @param initial true if this is the perturbation at the start of an iteration
+     */
+    void perturb(double[] values, double sd, boolean initial) {
+        for (int k=0; k<dim; k++) {
+            if (k == profileColumn || (initialValueOnly[k] && !initial))
+                continue;
+
+            if (logScale[k])
+                values[k] *= Math.exp(sd*Randomizer.nextGaussian());
+            else
+                values[k] += sd*naturalScale[k]*Randomizer.nextGaussian();
+        }
+    }
+
+    /**
+     * Run iterated filtering from the given starting values.
+     *
+     * @param executor executor running one thread per worker
+     * @param start starting parameter vector
+     * @param pass index of this estimation pass, for the trace
+     * @param tracePS stream to write iteration trace to, or null
+     * @return parameter estimate
+     */
+    double[] estimate(ExecutorService executor, double[] start, int pass,
+                      PrintStream tracePS) throws Exception {
+
+        for (int j=0; j<nThetaParticles; j++)
+            System.arraycopy(start, 0, theta[j], 0, dim);
+
+        double[] estimate = start.clone();
+
+        for (int iter=0; iter<nIterationsInput.get(); iter++) {
+            double sd = perturbationSDInput.get()*Math.pow(coolingFactorInput.get(), iter);
+
+            for (int j=0; j<nThetaParticles; j++)
+                perturb(theta[j], sd, true);
+
+            int[] eventCounts = new int[nThetaParticles];
+            runParallel(executor, nThetaParticles, (worker, j) -> {
+                filterStates[j] = null;
+                filterLogLikelihoods[j] = Double.NEGATIVE_INFINITY;
+                if (!isWithinBounds(theta[j]))
+                    return;
+
+                SMCTreeDensity density = densities.get(worker);
+                setParameterValues(worker, theta[j]);
+                eventCounts[j] = density.startIncrementalLogP();
+                if (eventCounts[j] > 0) {
+                    filterStates[j] = density.saveFilterState();
+                    filterLogLikelihoods[j] = 0.0;
+                }
+            });
+
+            int nEvents = 0;
+            for (int j=0; j<nThetaParticles; j++)
+                nEvents = Math.max(nEvents, eventCounts[j]);
+
+            double logLikelihood = 0.0;
+            for (int eventIdx=0; eventIdx<nEvents; eventIdx++) {
+                if (eventIdx > 0) {
+                    for (int j=0; j<nThetaParticles; j++)
+                        perturb(theta[j], sd, false);
+                }
+
+                runParallel(executor, nThetaParticles, (worker, j) -> {
+                    newFilterStates[j] = null;
+                    newFilterLogLikelihoods[j] = Double.NEGATIVE_INFINITY;
+                    if (filterStates[j] == null || !isWithinBounds(theta[j]))
+                        return;
+
+                    SMCTreeDensity density = densities.get(worker);
+                    setParameterValues(worker, theta[j]);
+                    density.restoreFilterState(filterStates[j]);
+                    newFilterLogLikelihoods[j] = density.advanceIncrementalLogP();
+                    if (newFilterLogLikelihoods[j] > Double.NEGATIVE_INFINITY)
+                        newFilterStates[j] = density.saveFilterState();
+                });
+
+                for (int j=0; j<nThetaParticles; j++) {
+                    incrementalLogWeights[j] = newFilterStates[j] != null
+                            ? newFilterLogLikelihoods[j] - filterLogLikelihoods[j]
+                            : Double.NEGATIVE_INFINITY;
+                }
+
+                double logSumOfWeights = logSumExp(incrementalLogWeights);
+                if (logSumOfWeights == Double.NEGATIVE_INFINITY)
+                    throw new IllegalStateException("All IF2 particles have zero " +
+                            "weight at observed event " + eventIdx + " of iteration "
+                            + iter + ".  Try more tree density particles or " +
+                            "smaller perturbations.");
+
+                logLikelihood += logSumOfWeights - Math.log(nThetaParticles);
+
+                // Resample parameters together with their filters
+                double[] weights = new double[nThetaParticles];
+                for (int j=0; j<nThetaParticles; j++)
+                    weights[j] = Math.exp(incrementalLogWeights[j] - logSumOfWeights);
+
+                ReplacementSampler sampler = new ReplacementSampler(weights);
+                for (int j=0; j<nThetaParticles; j++) {
+                    int a = sampler.next();
+                    System.arraycopy(theta[a], 0, newTheta[j], 0, dim);
+                    filterStates[j] = newFilterStates[a];
+                    filterLogLikelihoods[j] = newFilterLogLikelihoods[a];
+                }
+
+                double[][] tmpTheta = theta;
+                theta = newTheta;
+                newTheta = tmpTheta;
+            }
+
+            // Average the swarm on the perturbation scale
+            for (int k=0; k<dim; k++) {
+                if (k == profileColumn)
+                    continue;
+
+                double mean = 0.0;
+                for (int j=0; j<nThetaParticles; j++)
+                    mean += logScale[k] ? Math.log(theta[j][k]) : theta[j][k];
+                mean /= nThetaParticles;
+
+                estimate[k] = logScale[k] ? Math.exp(mean) : mean;
+            }
+
+            if (tracePS != null) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(pass).append("\t").append(iter).append("\t").append(logLikelihood);
+                for (int k=0; k<dim; k++)
+                    sb.append("\t").append(estimate[k]);
+                tracePS.println(sb);
+                tracePS.flush();
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Estimate the log likelihood at a parameter vector by averaging
+     * independent density estimates.
+     *
+     * @param executor executor running one thread per worker
+     * @param values parameter vector
+     * @return log likelihood estimate and its approximate standard error
+     */
+    double[] evaluateLogLikelihood(ExecutorService executor, double[] values) throws Exception {
+        int n = nLikelihoodEvaluationsInput.get();
+        double[] logPs = new double[n];
+
+        runParallel(executor, n, (worker, i) -> {
+            setParameterValues(worker, values);
+            logPs[i] = densities.get(worker).recalculateLogP();
+        });
+
+        double logMean = logSumExp(logPs) - Math.log(n);
+        if (logMean == Double.NEGATIVE_INFINITY || n < 2)
+            return new double[] {logMean, Double.NaN};
+
+        // Delta method standard error of the log of the mean likelihood
+        double sumSq = 0.0;
+        for (double logP : logPs) {
+            double x = Math.exp(logP - logMean) - 1.0;
+            sumSq += x*x;
+        }
+
+        return new double[] {logMean, Math.sqrt(sumSq/(n-1)/n)};
+    }
+}
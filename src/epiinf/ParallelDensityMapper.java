@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import epiinf.util.AsyncLogWriter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Evaluates the tree density over a regular grid of parameter values,
+ * spreading the evaluations across one worker thread per tree density
+ * copy.  Each parameter element named in parameterNames is one axis of
+ * the grid.  Results are written as each evaluation completes, so rows
+ * appear in completion order, identified by their grid point and
+ * replicate indices.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Evaluates tree density over a parameter grid in parallel.")
+public class ParallelDensityMapper extends ParallelDensityRunnable {
+
+    public Input<Function> lowerInput = new Input<>(
+            "lower",
+            "Lower limit of each grid axis.  A single value applies to all axes.",
+            Validate.REQUIRED);
+
+    public Input<Function> upperInput = new Input<>(
+            "upper",
+            "Upper limit of each grid axis.  A single value applies to all axes.",
+            Validate.REQUIRED);
+
+    public Input<Function> stepsInput = new Input<>(
+            "steps",
+            "Number of points along each grid axis.  An axis with a single " +
+                    "point is fixed at the starting value of its parameter.  " +
+                    "A single value applies to all axes.",
+            Validate.REQUIRED);
+
+    public Input<Function> logScaleInput = new Input<>(
+            "logScale",
+            "Whether each grid axis is evenly spaced on the log scale (1) or " +
+                    "the natural scale (0).  A single value applies to all " +
+                    "axes.  Defaults to natural scale.");
+
+    public Input<Integer> replicatesInput = new Input<>(
+            "replicates",
+            "Number of independent density evaluations at each grid point.", 1);
+
+    public Input<String> fileNameInput = new Input<>(
+            "fileName",
+            "Name of file to write density evaluations to.",
+            Validate.REQUIRED);
+
+    public Input<Integer> queueCapacityInput = new Input<>(
+            "queueCapacity",
+            "Maximum number of completed evaluations awaiting output.", 1024);
+
+    double[][] axisValues;
+    int nPoints;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+
+        if (replicatesInput.get() < 1)
+            throw new IllegalArgumentException("replicates must be positive.");
+
+        double[] start = getStartingValues();
+
+        axisValues = new double[dim][];
+        nPoints = 1;
+        for (int k=0; k<dim; k++) {
+            double lower = getAxisSetting(lowerInput.get(), k);
+            double upper = getAxisSetting(upperInput.get(), k);
+            int steps = (int)Math.round(getAxisSetting(stepsInput.get(), k));
+            boolean logScale = logScaleInput.get() != null
+                    && getAxisSetting(logScaleInput.get(), k) > 0.5;
+
+            if (steps < 1)
+                throw new IllegalArgumentException("Number of steps along each " +
+                        "grid axis must be positive.");
+
+            if (steps > 1 && logScale && !(lower > 0.0 && upper > 0.0))
+                throw new IllegalArgumentException("Limits of log-scale grid " +
+                        "axis " + columnNames[k] + " must be positive.");
+
+            axisValues[k] = new double[steps];
+            if (steps == 1) {
+                axisValues[k][0] = start[k];
+            } else {
+                for (int i=0; i<steps; i++) {
+                    double f = i/(double)(steps-1);
+                    axisValues[k][i] = logScale
+                            ? Math.exp(Math.log(lower) + f*(Math.log(upper) - Math.log(lower)))
+                            : lower + f*(upper - lower);
+                }
+            }
+
+            if ((long)nPoints*steps > Integer.MAX_VALUE/replicatesInput.get())
+                throw new IllegalArgumentException("Too many grid points.");
+            nPoints *= steps;
+        }
+    }
+
+    /**
+     * @param setting per-axis setting, or a single value for all axes
+     * @param k axis index
+     * @return setting for axis k
+     */
+    double getAxisSetting(Function setting, int k) {
+        if (setting.getDimension() == 1)
+            return setting.getArrayValue();
+
+        if (setting.getDimension() != dim)
+            throw new IllegalArgumentException("Grid axis settings must have " +
+                    "either one value or one value per axis (" + dim + ").");
+
+        return setting.getArrayValue(k);
+    }
+
+    /**
+     * Assemble the parameter vector for a grid point.
+     *
+     * @param point index of grid point
+     * @param values array to write parameter vector into
+     */
+    void getGridPoint(int point, double[] values) {
+        for (int k=dim-1; k>=0; k--) {
+            values[k] = axisValues[k][point % axisValues[k].length];
+            point /= axisValues[k].length;
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        int replicates = replicatesInput.get();
+        AsyncLogWriter writer = new AsyncLogWriter(fileNameInput.get(),
+                "point\treplicate\t" + String.join("\t", columnNames) + "\tlogP",
+                queueCapacityInput.get());
+
+        ExecutorService executor = Executors.newFixedThreadPool(densities.size());
+        try {
+            runParallel(executor, nPoints*replicates, (worker, item) -> {
+                int point = item / replicates;
+                int replicate = item % replicates;
+
+                double[] values = new double[dim];
+                getGridPoint(point, values);
+                setParameterValues(worker, values);
+
+                double logP = isWithinBounds(values)
+                        ? densities.get(worker).recalculateLogP()
+                        : Double.NEGATIVE_INFINITY;
+
+                writer.submit(item, out -> {
+                    out.print(point + "\t" + replicate);
+                    for (double value : values)
+                        out.print("\t" + value);
+                    out.print("\t" + logP);
+                });
+            });
+        } finally {
+            executor.shutdownNow();
+            writer.close();
+        }
+
+        Log.info.println("Evaluated tree density at " + nPoints + " grid points ("
+                + replicates + " replicate" + (replicates > 1 ? "s" : "") + " each).");
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.util.SeededRandomSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for Runnables which evaluate a tree density at many
+ * parameter values in parallel.  BEAST object graphs cannot be copied
+ * generically, so the caller supplies several copies of the tree density
+ * (e.g. generated using a plate), each with its own epidemic model and
+ * parameters.  One worker thread is used per copy.
+ *
+ * Each copy draws its random variates from its own stream rather than
+ * from BEAST's shared Randomizer.  The stream is reseeded before each
+ * item is processed, using a key drawn from the Randomizer on the calling
+ * thread together with the item index, so results do not depend on how
+ * items are scheduled across threads.
+ *
+ * The parameters varied are identified by the names of the model inputs
+ * they are attached to.  Parameter vectors are the concatenated values
+ * of these parameters.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class ParallelDensityRunnable extends beast.base.inference.Runnable {
+
+    public Input<List<SMCTreeDensity>> treeDensityInput = new Input<>(
+            "treeDensity",
+            "Copies of the tree density, each with its own model and " +
+                    "parameters.  One worker thread is used per copy.",
+            new ArrayList<>(), Validate.REQUIRED);
+
+    public Input<String> parameterNamesInput = new Input<>(
+            "parameterNames",
+            "Space-delimited names of the epidemic model inputs to vary, " +
+                    "e.g. \"infectionRate recoveryRate origin\".  Each must " +
+                    "be a RealParameter.", Validate.REQUIRED);
+
+    protected List<SMCTreeDensity> densities;
+    protected String[] parameterNames;
+    protected RealParameter[][] workerParameters;
+    protected SeededRandomSource[] workerRandom;
+
+    protected int dim;
+    protected String[] columnNames;
+    protected double[] lower, upper;
+
+    @Override
+    public void initAndValidate() {
+        densities = treeDensityInput.get();
+        parameterNames = parameterNamesInput.get().trim().split("\\s+");
+
+        workerParameters = new RealParameter[densities.size()][];
+        for (int w=0; w<densities.size(); w++) {
+            SMCTreeDensity density = densities.get(w);
+
+            for (int v=0; v<w; v++) {
+                if (densities.get(v) == density
+                        || densities.get(v).getModel() == density.getModel())
+                    throw new IllegalArgumentException("Each tree density copy " +
+                            "must have its own model.");
+            }
+
+            workerParameters[w] = getModelParameters(density, parameterNames);
+
+            for (int v=0; v<w; v++) {
+                for (int j=0; j<parameterNames.length; j++) {
+                    if (workerParameters[v][j] == workerParameters[w][j])
+                        throw new IllegalArgumentException("Each tree density copy "
+                                + "must have its own " + parameterNames[j]
+                                + " parameter.");
+                }
+            }
+        }
+
+        workerRandom = new SeededRandomSource[densities.size()];
+        for (int w=0; w<densities.size(); w++) {
+            workerRandom[w] = new SeededRandomSource();
+            densities.get(w).setRandomSource(workerRandom[w]);
+        }
+
+        for (int w=1; w<workerParameters.length; w++) {
+            for (int j=0; j<parameterNames.length; j++) {
+                if (workerParameters[w][j].getDimension() != workerParameters[0][j].getDimension())
+                    throw new IllegalArgumentException("Parameter " + parameterNames[j]
+                            + " has different dimensions in different tree density copies.");
+            }
+        }
+
+        List<String> columnNameList = new ArrayList<>();
+        for (int j=0; j<parameterNames.length; j++) {
+            RealParameter param = workerParameters[0][j];
+            for (int i=0; i<param.getDimension(); i++)
+                columnNameList.add(param.getDimension() == 1
+                        ? parameterNames[j]
+                        : parameterNames[j] + (i+1));
+        }
+        columnNames = columnNameList.toArray(new String[0]);
+        dim = columnNames.length;
+
+        lower = new double[dim];
+        upper = new double[dim];
+        int k = 0;
+        for (RealParameter param : workerParameters[0]) {
+            for (int i=0; i<param.getDimension(); i++) {
+                lower[k] = param.getLower();
+                upper[k] = param.getUpper();
+                k += 1;
+            }
+        }
+    }
+
+    /**
+     * Throw an exception unless every tree density copy can be evaluated
+     * incrementally.
+     */
+    protected void requireIncrementalEvaluation() {
+        for (SMCTreeDensity density : densities) {
+            if (density.offHeapMemoryBudgetInput.get() != null
+                    || density.useAliveFilterInput.get()
+                    || density.rejuvenationMovesInput.get() > 0
+                    || density.trajectoryRecordingModeInput.get() != SMCTreeDensity.TrajectoryRecordingMode.FULL)
+                throw new IllegalArgumentException(getClass().getSimpleName()
+                        + " requires tree densities with FULL trajectory recording "
+                        + "on the heap, without useAliveFilter or rejuvenationMoves.");
+        }
+    }
+
+    /**
+     * Retrieve the RealParameters attached to the named inputs of the
+     * epidemic model used by a tree density.
+     *
+     * @param density tree density
+     * @param names names of model inputs
+     * @return array of parameters
+     */
+    static RealParameter[] getModelParameters(SMCTreeDensity density, String[] names) {
+        RealParameter[] params = new RealParameter[names.length];
+
+        for (int j=0; j<names.length; j++) {
+            Object value = density.getModel().getInput(names[j]).get();
+            if (!(value instanceof RealParameter))
+                throw new IllegalArgumentException("Model input " + names[j]
+                        + " is not a RealParameter.");
+
+            params[j] = (RealParameter) value;
+
+            for (int k=0; k<j; k++) {
+                if (params[k] == params[j])
+                    throw new IllegalArgumentException("Model inputs " + names[k]
+                            + " and " + names[j] + " share a parameter.");
+            }
+        }
+
+        return params;
+    }
+
+    /**
+     * Find the parameter vector elements belonging to a named parameter or
+     * matching a column name.
+     *
+     * @param name model input name or column name
+     * @return indices of parameter vector elements
+     */
+    protected int[] getColumnIndices(String name) {
+        int k = 0;
+        for (int j=0; j<parameterNames.length; j++) {
+            int paramDim = workerParameters[0][j].getDimension();
+
+            if (parameterNames[j].equals(name)) {
+                int[] indices = new int[paramDim];
+                for (int i=0; i<paramDim; i++)
+                    indices[i] = k + i;
+                return indices;
+            }
+
+            k += paramDim;
+        }
+
+        for (k=0; k<dim; k++) {
+            if (columnNames[k].equals(name))
+                return new int[] {k};
+        }
+
+        throw new IllegalArgumentException("'" + name + "' is not one of the "
+                + "parameters named in parameterNames.");
+    }
+
+    /**
+     * @return starting parameter vector, taken from the first tree density copy
+     */
+    protected double[] getStartingValues() {
+        double[] values = new double[dim];
+
+        int k = 0;
+        for (RealParameter param : workerParameters[0]) {
+            for (int i=0; i<param.getDimension(); i++)
+                values[k++] = param.getValue(i);
+        }
+
+        return values;
+    }
+
+    /**
+     * @param values parameter vector
+     * @return true if every element lies within the bounds of its parameter
+     */
+    protected boolean isWithinBounds(double[] values) {
+        for (int k=0; k<dim; k++) {
+            if (values[k] < lower[k] || values[k] > upper[k])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Assign a parameter vector to the parameters of a worker's tree
+     * density copy.
+     *
+     * @param worker index of worker
+     * @param values parameter vector
+     */
+    protected void setParameterValues(int worker, double[] values) {
+        int k = 0;
+        for (RealParameter param : workerParameters[worker]) {
+            for (int i=0; i<param.getDimension(); i++)
+                param.setValue(i, values[k++]);
+        }
+    }
+
+    /**
+     * Task run for a single item by a worker thread.
+     */
+    protected interface WorkerTask {
+        void run(int worker, int item) throws Exception;
+    }
+
+    /**
+     * Run a task for each of a number of items, spreading the items
+     * across the worker threads.
+     *
+     * @param executor executor with at least one thread per worker
+     * @param nItems number of items
+     * @param task task to run
+     */
+    protected void runParallel(ExecutorService executor, int nItems, WorkerTask task) throws Exception {
+        AtomicInteger nextItem = new AtomicInteger();
+        long key = Randomizer.nextLong();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w=0; w<densities.size(); w++) {
+            final int worker = w;
+            futures.add(executor.submit(() -> {
+                int item;
+                while ((item = nextItem.getAndIncrement()) < nItems) {
+                    workerRandom[worker].setSeed(key, item, 0);
+                    task.run(worker, item);
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> future : futures)
+            future.get();
+    }
+
+    /**
+     * Compute log(sum(exp(x))) without overflow.
+     *
+     * @param x array of values
+     * @return log of sum of exponentiated values
+     */
+    protected static double logSumExp(double[] x) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double v : x)
+            max = Math.max(max, v);
+
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
+
+        double sum = 0.0;
+        for (double v : x)
+            sum += Math.exp(v - max);
+
+        return max + Math.log(sum);
+    }
+}
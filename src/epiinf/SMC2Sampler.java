@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.inference.Distribution;
+import beast.base.util.Randomizer;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.util.ReplacementSampler;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SMC^2 sampler (Chopin, Jacob and Papaspiliopoulos, JRSS B, 2013) for
+ * the parameters of an epidemic model.  A population of parameter
+ * particles, each carrying its own SMCTreeDensity particle filter, is
+ * moved through the observed events in time order.  Whenever the
+ * effective sample size of the population falls too low, it is resampled
+ * and rejuvenated using particle marginal Metropolis-Hastings moves
+ * targeting the posterior given the events seen so far.  The product of
+ * the mean incremental weights gives an estimate of the marginal
+ * likelihood.
+ *
+ * The initial population is drawn from a normal distribution about the
+ * starting parameter values and weighted by the ratio of the prior to
+ * this distribution, so the priors need not support direct sampling.
+ *
+ * Inner filters are run in parallel, one worker thread per supplied copy
+ * of the tree density.  Each copy must have its own model and parameters.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("SMC^2 sampler for epidemic model parameters, using nested " +
+        "SMCTreeDensity particle filters.")
+public class SMC2Sampler extends ParallelDensityRunnable {
+
+    public Input<List<Distribution>> priorInput = new Input<>(
+            "prior",
+            "Priors on the inferred parameters of the first tree density " +
+                    "copy.  Each is evaluated directly, so should be a " +
+                    "simple distribution such as Prior rather than a " +
+                    "CompoundDistribution.", new ArrayList<>());
+
+    public Input<Integer> nParameterParticlesInput = new Input<>(
+            "nParameterParticles",
+            "Number of parameter particles.", 200);
+
+    public Input<Double> resampThreshInput = new Input<>(
+            "resampThresh",
+            "Fraction of parameter particles below which the effective " +
+                    "sample size triggers resampling and rejuvenation.", 0.5);
+
+    public Input<Integer> pmmhMovesInput = new Input<>(
+            "pmmhMoves",
+            "Number of PMMH moves applied to each parameter particle " +
+                    "at each rejuvenation.", 1);
+
+    public Input<Double> proposalScaleInput = new Input<>(
+            "proposalScale",
+            "Scale of PMMH random walk proposals relative to the standard " +
+                    "2.38/sqrt(d) multiple of the population standard " +
+                    "deviation of each parameter.", 1.0);
+
+    public Input<Double> initialScaleInput = new Input<>(
+            "initialScale",
+            "Standard deviation of the initial parameter distribution " +
+                    "relative to the magnitude of the starting values.", 0.5);
+
+    public Input<String> fileNameInput = new Input<>(
+            "fileName",
+            "Name of file to write weighted parameter particles to.",
+            Validate.REQUIRED);
+
+    List<Distribution> priors;
+    int nThetaParticles;
+
+    double[][] theta, proposedTheta;
+    double[] logWeights, logPriors, logLikelihoods;
+    double[] proposedLogPriors, proposedLogLikelihoods;
+    SMCTreeDensity.FilterState[] filterStates, proposedFilterStates;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        requireIncrementalEvaluation();
+
+        priors = priorInput.get();
+
+        nThetaParticles = nParameterParticlesInput.get();
+        if (nThetaParticles < 2)
+            throw new IllegalArgumentException("nParameterParticles must be at least 2.");
+
+        theta = new double[nThetaParticles][dim];
+        proposedTheta = new double[nThetaParticles][dim];
+        logWeights = new double[nThetaParticles];
+        logPriors = new double[nThetaParticles];
+        logLikelihoods = new double[nThetaParticles];
+        proposedLogPriors = new double[nThetaParticles];
+        proposedLogLikelihoods = new double[nThetaParticles];
+        filterStates = new SMCTreeDensity.FilterState[nThetaParticles];
+        proposedFilterStates = new SMCTreeDensity.FilterState[nThetaParticles];
+    }
+
+    /**
+     * Evaluate the log prior density of a parameter vector, using the
+     * parameters of the first tree density copy.  Must not be called
+     * while worker threads are running.
+     *
+     * @param values parameter vector
+     * @return log prior density
+     */
+    double getLogPrior(double[] values) {
+        if (!isWithinBounds(values))
+            return Double.NEGATIVE_INFINITY;
+
+        setParameterValues(0, values);
+
+        double logPrior = 0.0;
+        for (Distribution prior : priors)
+            logPrior += prior.calculateLogP();
+
+        return logPrior;
+    }
+
+    /**
+     * @return effective sample size of parameter particle population
+     */
+    double getEffectiveSampleSize() {
+        double logSum = logSumExp(logWeights);
+        double sumOfSquares = 0.0;
+        for (int i=0; i<nThetaParticles; i++)
+            sumOfSquares += Math.exp(2.0*(logWeights[i] - logSum));
+
+        return 1.0/sumOfSquares;
+    }
+
+    @Override
+    public void run() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(densities.size());
+        try {
+            double logMarginalLikelihood = sample(executor);
+
+            Log.info.println("SMC2 log marginal likelihood estimate: " + logMarginalLikelihood);
+            writeParticles(logMarginalLikelihood);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the sampler.
+     *
+     * @param executor executor running one thread per worker
+     * @return log of marginal likelihood estimate
+     */
+    double sample(ExecutorService executor) throws Exception {
+
+        // Draw initial parameter particles
+
+        double[] start = getStartingValues();
+
+        double[] initialSD = new double[dim];
+        for (int k=0; k<dim; k++)
+            initialSD[k] = initialScaleInput.get()*(start[k] != 0.0 ? Math.abs(start[k]) : 1.0);
+
+        for (int i=0; i<nThetaParticles; i++) {
+            double logProposal = 0.0;
+            for (int k=0; k<dim; k++) {
+                double z = Randomizer.nextGaussian();
+                theta[i][k] = start[k] + initialSD[k]*z;
+                logProposal += -0.5*z*z - Math.log(initialSD[k]*Math.sqrt(2.0*Math.PI));
+            }
+
+            logPriors[i] = getLogPrior(theta[i]);
+            logWeights[i] = logPriors[i] - logProposal;
+            logLikelihoods[i] = 0.0;
+        }
+
+        double logMarginalLikelihood = logSumExp(logWeights) - Math.log(nThetaParticles);
+
+        int[] eventCounts = new int[nThetaParticles];
+        runParallel(executor, nThetaParticles, (worker, i) -> {
+            if (logWeights[i] == Double.NEGATIVE_INFINITY)
+                return;
+
+            SMCTreeDensity density = densities.get(worker);
+            setParameterValues(worker, theta[i]);
+            eventCounts[i] = density.startIncrementalLogP();
+            filterStates[i] = density.saveFilterState();
+
+            if (eventCounts[i] == 0)
+                logLikelihoods[i] = Double.NEGATIVE_INFINITY;
+        });
+
+        int nEvents = 0;
+        for (int i=0; i<nThetaParticles; i++)
+            nEvents = Math.max(nEvents, eventCounts[i]);
+
+        for (int i=0; i<nThetaParticles; i++) {
+            if (eventCounts[i] != 0 && eventCounts[i] != nEvents)
+                throw new IllegalStateException("Number of observed events " +
+                        "depends on parameter values.");
+        }
+
+        // Incorporate observed events one at a time
+
+        double[] newLogLikelihoods = new double[nThetaParticles];
+        double[] incrementalLogWeights = new double[nThetaParticles];
+        for (int eventIdx=0; eventIdx<nEvents; eventIdx++) {
+
+            runParallel(executor, nThetaParticles, (worker, i) -> {
+                if (logWeights[i] == Double.NEGATIVE_INFINITY
+                        || logLikelihoods[i] == Double.NEGATIVE_INFINITY) {
+                    newLogLikelihoods[i] = Double.NEGATIVE_INFINITY;
+                    return;
+                }
+
+                SMCTreeDensity density = densities.get(worker);
+                setParameterValues(worker, theta[i]);
+                density.restoreFilterState(filterStates[i]);
+                newLogLikelihoods[i] = density.advanceIncrementalLogP();
+                filterStates[i] = density.saveFilterState();
+            });
+
+            double logSumOfWeights = logSumExp(logWeights);
+            for (int i=0; i<nThetaParticles; i++) {
+                incrementalLogWeights[i] = newLogLikelihoods[i] == Double.NEGATIVE_INFINITY
+                        ? Double.NEGATIVE_INFINITY
+                        : newLogLikelihoods[i] - logLikelihoods[i];
+
+                logWeights[i] += incrementalLogWeights[i];
+                logLikelihoods[i] = newLogLikelihoods[i];
+            }
+
+            double logSumOfNewWeights = logSumExp(logWeights);
+            if (logSumOfNewWeights == Double.NEGATIVE_INFINITY)
+                throw new IllegalStateException("All parameter particles have " +
+                        "zero weight after observed event " + eventIdx + ".");
+
+            logMarginalLikelihood += logSumOfNewWeights - logSumOfWeights;
+
+            double ess = getEffectiveSampleSize();
+            if (eventIdx < nEvents-1 && ess < resampThreshInput.get()*nThetaParticles) {
+                double acceptanceRate = resampleMove(executor, eventIdx+1);
+
+                Log.info.println("SMC2: " + (eventIdx+1) + "/" + nEvents
+                        + " observed events, ESS " + String.format("%.1f", ess)
+                        + ", PMMH acceptance rate " + String.format("%.3f", acceptanceRate));
+            }
+        }
+
+        return logMarginalLikelihood;
+    }
+
+    /**
+     * Resample the parameter particles and rejuvenate them with PMMH
+     * moves targeting the posterior given the first nEvents observed events.
+     *
+     * @param executor executor running one thread per worker
+     * @param nEvents number of observed events incorporated so far
+     * @return acceptance rate of PMMH moves
+     */
+    double resampleMove(ExecutorService executor, int nEvents) throws Exception {
+
+        // Random walk proposal scales from weighted population variances
+
+        double logSum = logSumExp(logWeights);
+        double[] weights = new double[nThetaParticles];
+        for (int i=0; i<nThetaParticles; i++)
+            weights[i] = Math.exp(logWeights[i] - logSum);
+
+        double[] proposalSD = new double[dim];
+        for (int k=0; k<dim; k++) {
+            double mean = 0.0, meanSq = 0.0;
+            for (int i=0; i<nThetaParticles; i++) {
+                mean += weights[i]*theta[i][k];
+                meanSq += weights[i]*theta[i][k]*theta[i][k];
+            }
+            proposalSD[k] = proposalScaleInput.get()*2.38/Math.sqrt(dim)
+                    * Math.sqrt(Math.max(meanSq - mean*mean, 0.0));
+        }
+
+        // Resample
+
+        ReplacementSampler sampler = new ReplacementSampler(weights);
+        int[] ancestors = new int[nThetaParticles];
+        for (int i=0; i<nThetaParticles; i++)
+            ancestors[i] = sampler.next();
+
+        double[][] oldTheta = new double[nThetaParticles][];
+        double[] oldLogPriors = logPriors.clone();
+        double[] oldLogLikelihoods = logLikelihoods.clone();
+        SMCTreeDensity.FilterState[] oldFilterStates = filterStates.clone();
+        for (int i=0; i<nThetaParticles; i++)
+            oldTheta[i] = theta[i].clone();
+
+        for (int i=0; i<nThetaParticles; i++) {
+            int a = ancestors[i];
+            System.arraycopy(oldTheta[a], 0, theta[i], 0, dim);
+            logPriors[i] = oldLogPriors[a];
+            logLikelihoods[i] = oldLogLikelihoods[a];
+            filterStates[i] = oldFilterStates[a];
+            logWeights[i] = 0.0;
+        }
+
+        // Rejuvenate
+
+        int nAccepted = 0;
+        for (int move=0; move<pmmhMovesInput.get(); move++) {
+
+            for (int i=0; i<nThetaParticles; i++) {
+                for (int k=0; k<dim; k++)
+                    proposedTheta[i][k] = theta[i][k] + proposalSD[k]*Randomizer.nextGaussian();
+
+                proposedLogPriors[i] = getLogPrior(proposedTheta[i]);
+            }
+
+            runParallel(executor, nThetaParticles, (worker, i) -> {
+                proposedFilterStates[i] = null;
+                proposedLogLikelihoods[i] = Double.NEGATIVE_INFINITY;
+
+                if (proposedLogPriors[i] == Double.NEGATIVE_INFINITY)
+                    return;
+
+                SMCTreeDensity density = densities.get(worker);
+                setParameterValues(worker, proposedTheta[i]);
+                if (density.startIncrementalLogP() == 0)
+                    return;
+
+                double logLikelihood = 0.0;
+                for (int e=0; e<nEvents && logLikelihood > Double.NEGATIVE_INFINITY; e++)
+                    logLikelihood = density.advanceIncrementalLogP();
+
+                proposedLogLikelihoods[i] = logLikelihood;
+                if (logLikelihood > Double.NEGATIVE_INFINITY)
+                    proposedFilterStates[i] = density.saveFilterState();
+            });
+
+            for (int i=0; i<nThetaParticles; i++) {
+                if (proposedLogLikelihoods[i] == Double.NEGATIVE_INFINITY)
+                    continue;
+
+                double logAlpha = proposedLogPriors[i] + proposedLogLikelihoods[i]
+                        - logPriors[i] - logLikelihoods[i];
+
+                if (Math.log(Randomizer.nextDouble()) < logAlpha) {
+                    System.arraycopy(proposedTheta[i], 0, theta[i], 0, dim);
+                    logPriors[i] = proposedLogPriors[i];
+                    logLikelihoods[i] = proposedLogLikelihoods[i];
+                    filterStates[i] = proposedFilterStates[i];
+                    nAccepted += 1;
+                }
+            }
+        }
+
+        return nAccepted/(double)(nThetaParticles*pmmhMovesInput.get());
+    }
+
+    /**
+     * Write weighted parameter particles to output file.
+     *
+     * @param logMarginalLikelihood log marginal likelihood estimate
+     */
+    void writeParticles(double logMarginalLikelihood) throws FileNotFoundException {
+        double logSum = logSumExp(logWeights);
+
+        try (PrintStream ps = new PrintStream(fileNameInput.get())) {
+            ps.println("# log marginal likelihood estimate: " + logMarginalLikelihood);
+
+            ps.print("particle\tweight\tlogLikelihood");
+            for (String columnName : columnNames)
+                ps.print("\t" + columnName);
+            ps.println();
+
+            for (int i=0; i<nThetaParticles; i++) {
+                ps.print(i + "\t" + Math.exp(logWeights[i] - logSum) + "\t" + logLikelihoods[i]);
+                for (int k=0; k<dim; k++)
+                    ps.print("\t" + theta[i][k]);
+                ps.println();
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 import epiinf.models.EpidemicModel;
 import epiinf.models.SISModel;
+import epiinf.util.RandomSource;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
@@ -39,7 +40,7 @@ import java.util.logging.Logger;
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
 @Description("Simulate an epidemic trajectory under a stochastic SIR model.")
-public class SimulatedTrajectory extends EpidemicTrajectory {
+public class SimulatedTrajectory extends ColumnarEpidemicTrajectory {
     
     public Input<EpidemicModel> modelInput = new Input<>(
             "model", "Epidemic model.", Validate.REQUIRED);
@@ -62,10 +63,40 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
             "conditionedSamplingTimes",
             "Times at which to force psi-sampling events");
 
+    public Input<Integer> recordingGridSizeInput = new Input<>(
+            "recordingGridSize",
+            "If recordingGridSize > 0, only the states at this many evenly " +
+                    "spaced times between 0 and the origin are recorded, and no " +
+                    "events.  Such trajectories cannot be used to simulate trees. " +
+                    "Only available without fixed-step tau leaping.", 0);
+
+    public Input<Boolean> useAdaptiveTauLeapingInput = new Input<>(
+            "useAdaptiveTauLeaping",
+            "Use tau leaping with leap sizes selected at each step, falling " +
+                    "back to exact simulation when few events are expected " +
+                    "per leap.  Cannot be combined with nSteps > 0.", false);
+
+    public Input<Double> epsilonInput = new Input<>(
+            "tauLeapingEpsilon",
+            "Relative fraction of propensity change to allow when selecting " +
+                    "adaptive leap size.", 0.03);
+
+    /**
+     * Leaps expected to contain fewer than this many events are replaced
+     * by a single exact step.
+     */
+    private static final double SSA_THRESHOLD = 10.0;
+
     EpidemicModel model;
     int nSteps, minSampleCount;
     double[] conditionedSamplingTimes;
 
+    boolean useAdaptiveTauLeaping;
+    double epsilon;
+
+    int recordingGridSize, nextGridIdx, sampleCount;
+    EpidemicState gridState = new EpidemicState();
+
     public SimulatedTrajectory() { }
 
     public SimulatedTrajectory(EpidemicModel model, double origin, int nSteps, int minSampleCount,
@@ -96,6 +127,19 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
         if (conditionedSamplingTimesInput.get() != null)
             conditionedSamplingTimes = conditionedSamplingTimesInput.get().getDoubleValues();
 
+        recordingGridSize = recordingGridSizeInput.get();
+        if (recordingGridSize == 1 || recordingGridSize < 0)
+            throw new IllegalArgumentException("recordingGridSize must be 0 or at least 2.");
+        if (recordingGridSize > 0 && nSteps > 0)
+            throw new IllegalArgumentException("recordingGridSize cannot be used with tau leaping.");
+
+        useAdaptiveTauLeaping = useAdaptiveTauLeapingInput.get();
+        epsilon = epsilonInput.get();
+        if (useAdaptiveTauLeaping && nSteps > 0)
+            throw new IllegalArgumentException("useAdaptiveTauLeaping cannot be used with nSteps > 0.");
+        if (epsilon <= 0.0)
+            throw new IllegalArgumentException("tauLeapingEpsilon must be positive.");
+
         simulationLoop();
 
         if (fileNameInput.get() != null) {
@@ -111,46 +155,68 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
         boolean success;
         do {
-            eventList = new ArrayList<>();
-            stateList = new ArrayList<>();
+            clear();
 
-            success = nSteps > 0
-                    ? simulateTL()
-                    : simulate();
-        } while (!success || eventList.stream().filter(EpidemicEvent::isSample).count()<minSampleCount);
+            if (nSteps > 0)
+                success = simulateTL();
+            else if (useAdaptiveTauLeaping)
+                success = simulateAdaptiveTL();
+            else
+                success = simulate();
+        } while (!success || getSampleCount()<minSampleCount);
+    }
+
+    private int getSampleCount() {
+        if (recordingGridSize > 0)
+            return sampleCount;
+
+        int count = 0;
+        for (int i=0; i<getEventCount(); i++) {
+            if (EpidemicEvent.isSample(getEventType(i)))
+                count += 1;
+        }
+
+        return count;
     }
 
 
     /**
      * Simulate an epidemic using the provided model.
      *
+     * Events are applied using a single reusable event object and recorded
+     * directly into the columnar trajectory.  If a recording grid is in
+     * use, only the states at the grid times are recorded.
      */
     public boolean simulate() {
 
-        List<Double> remainingConditionedSamplingTimes = new ArrayList<>();
-        if (conditionedSamplingTimes != null) {
-            for (double sampTime : conditionedSamplingTimes)
-                remainingConditionedSamplingTimes.add(sampTime);
-        }
+        int nextConditionedSamplingIdx = 0;
+        int nConditionedSamplingTimes = conditionedSamplingTimes != null
+                ? conditionedSamplingTimes.length
+                : 0;
 
         double endTime;
         endTime = model.getOrigin();
 
-        eventList.clear();
-        stateList.clear();
+        clear();
+        sampleCount = 0;
+        nextGridIdx = 0;
 
         EpidemicState thisState = model.getInitialState();
-        stateList.add(model.getInitialState());
+        if (recordingGridSize == 0)
+            addState(model.getInitialState());
 
         thisState.time = 0;
 
+        EpidemicEvent nextEvent = new EpidemicEvent();
+        double[] propensities = model.propensities;
+
         while (true) {
             model.calculatePropensities(thisState);
 
-            double totalPropensity = model.propensities[EpidemicEvent.INFECTION]
-                    + model.propensities[EpidemicEvent.RECOVERY]
-                    + model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
-                    + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
+            double cumulativeInfection = propensities[EpidemicEvent.INFECTION];
+            double cumulativeRecovery = cumulativeInfection + propensities[EpidemicEvent.RECOVERY];
+            double cumulativeRemove = cumulativeRecovery + propensities[EpidemicEvent.PSI_SAMPLE_REMOVE];
+            double totalPropensity = cumulativeRemove + propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
 
             double dt;
             if (totalPropensity>0.0)
@@ -160,84 +226,325 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
             thisState.time += dt;
 
-            EpidemicEvent nextEvent = new EpidemicEvent();
+            nextEvent.multiplicity = 1;
 
             double nextModelEventTime = model.getNextModelEventTime(thisState);
-            double nextConditionedSamplingTime = remainingConditionedSamplingTimes.isEmpty()
-                    ? Double.POSITIVE_INFINITY
-                    : remainingConditionedSamplingTimes.get(0);
+            double nextConditionedSamplingTime = nextConditionedSamplingIdx < nConditionedSamplingTimes
+                    ? conditionedSamplingTimes[nextConditionedSamplingIdx]
+                    : Double.POSITIVE_INFINITY;
             double nextModelEventOrSamplingTime = Math.min(nextModelEventTime, nextConditionedSamplingTime);
 
             if (nextModelEventOrSamplingTime <= endTime && thisState.time > nextModelEventOrSamplingTime) {
                 if (nextModelEventOrSamplingTime == nextConditionedSamplingTime) {
-                    if (thisState.I <= 0.0)
+                    if (!applyConditionedSample(thisState, nextEvent, nextConditionedSamplingTime))
                         return false;
 
-                    if (model.currentRemovalProb == 1.0 || Randomizer.nextDouble() < model.currentRemovalProb)
+                    nextConditionedSamplingIdx += 1;
+
+                } else {
+                    applyModelEvent(thisState, nextEvent);
+                }
+
+                continue;
+            }
+
+            if (thisState.time>=endTime)
+                break;
+
+
+            nextEvent.time = thisState.time;
+
+            double u = totalPropensity*Randomizer.nextDouble();
+
+            if (u < cumulativeInfection)
+                nextEvent.type = EpidemicEvent.INFECTION;
+            else if (u < cumulativeRecovery)
+                nextEvent.type = EpidemicEvent.RECOVERY;
+            else if (u < cumulativeRemove)
+                nextEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
+            else
+                nextEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
+
+            applyEvent(thisState, nextEvent);
+        }
+
+        if (recordingGridSize > 0)
+            recordGridStates(thisState, Double.POSITIVE_INFINITY);
+
+        return true;
+    }
+
+    /**
+     * Simulate an epidemic using the provided model with adaptive tau
+     * leaping.  Leap sizes are chosen at each step using the model's
+     * getTau() method.  When the chosen leap is expected to contain fewer
+     * than SSA_THRESHOLD events, a single exact step is taken instead.
+     *
+     * Within a leap, the number of events which remove individuals from
+     * a compartment is drawn from a binomial distribution over the
+     * individuals present at the start of the leap, so populations never
+     * become negative.
+     */
+    public boolean simulateAdaptiveTL() {
+
+        int nextConditionedSamplingIdx = 0;
+        int nConditionedSamplingTimes = conditionedSamplingTimes != null
+                ? conditionedSamplingTimes.length
+                : 0;
+
+        double endTime;
+        endTime = model.getOrigin();
+
+        clear();
+        sampleCount = 0;
+        nextGridIdx = 0;
+
+        EpidemicState thisState = model.getInitialState();
+        if (recordingGridSize == 0)
+            addState(model.getInitialState());
+
+        thisState.time = 0;
+
+        EpidemicEvent nextEvent = new EpidemicEvent();
+        double[] propensities = model.propensities;
+
+        while (true) {
+            model.calculatePropensities(thisState);
+
+            double infectionProp = propensities[EpidemicEvent.INFECTION];
+            double recoveryProp = propensities[EpidemicEvent.RECOVERY];
+            double removeProp = propensities[EpidemicEvent.PSI_SAMPLE_REMOVE];
+            double noRemoveProp = propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE];
+            double totalPropensity = infectionProp + recoveryProp + removeProp + noRemoveProp;
+
+            double nextModelEventTime = model.getNextModelEventTime(thisState);
+            double nextConditionedSamplingTime = nextConditionedSamplingIdx < nConditionedSamplingTimes
+                    ? conditionedSamplingTimes[nextConditionedSamplingIdx]
+                    : Double.POSITIVE_INFINITY;
+            double nextModelEventOrSamplingTime = Math.min(nextModelEventTime, nextConditionedSamplingTime);
+            double nextBoundaryTime = Math.min(nextModelEventOrSamplingTime, endTime);
+
+            double tau = model.getTau(epsilon, thisState, infectionProp, recoveryProp + removeProp);
+
+            nextEvent.multiplicity = 1;
+
+            if (tau < SSA_THRESHOLD/totalPropensity) {
+
+                // Exact step
+
+                thisState.algorithm = EpidemicState.Algorithm.SSA;
+
+                double dt = Randomizer.nextExponential(totalPropensity);
+
+                if (thisState.time + dt < nextBoundaryTime) {
+                    thisState.time += dt;
+                    nextEvent.time = thisState.time;
+
+                    double u = totalPropensity*Randomizer.nextDouble();
+
+                    if (u < infectionProp)
+                        nextEvent.type = EpidemicEvent.INFECTION;
+                    else if (u < infectionProp + recoveryProp)
+                        nextEvent.type = EpidemicEvent.RECOVERY;
+                    else if (u < infectionProp + recoveryProp + removeProp)
                         nextEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
                     else
                         nextEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
 
-                    nextEvent.time = nextConditionedSamplingTime;
-                    model.incrementState(thisState, nextEvent);
-                    eventList.add(nextEvent);
-                    stateList.add(thisState.copy());
+                    applyEvent(thisState, nextEvent);
+                    continue;
+                }
 
-                    remainingConditionedSamplingTimes.remove(0);
+            } else {
 
-                } else {
-                    ModelEvent event = model.getNextModelEvent(thisState);
+                // Binomial leap
 
-                    if (event.type == ModelEvent.Type.RHO_SAMPLING) {
-                        nextEvent.type = EpidemicEvent.RHO_SAMPLE;
+                thisState.algorithm = EpidemicState.Algorithm.TL;
 
-                        // Got to be a better way of sampling from a binomial distribution
-                        nextEvent.multiplicity = 0;
-                        for (int i = 0; i < thisState.I; i++) {
-                            if (Randomizer.nextDouble() < event.rho)
-                                nextEvent.multiplicity += 1;
-                        }
+                double dt = Math.min(tau, nextBoundaryTime - thisState.time);
 
+                int nInfections;
+                if (model.infectionDepletesSusceptibles())
+                    nInfections = nextBoundedCount(thisState.S, infectionProp, dt);
+                else
+                    nInfections = (int)Randomizer.nextPoisson(dt*infectionProp);
 
-                        nextEvent.time = event.time;
-                        thisState.time = event.time;
+                int nRemovals = nextBoundedCount(thisState.I, recoveryProp + removeProp, dt);
+                int nRemoveSamples = nRemovals > 0
+                        ? (int)RandomSource.RANDOMIZER.nextBinomial(nRemovals,
+                                removeProp/(recoveryProp + removeProp))
+                        : 0;
+                int nNoRemoveSamples = nextBoundedCount(thisState.I, noRemoveProp, dt);
 
-                        model.incrementState(thisState, nextEvent);
-                        eventList.add(nextEvent);
-                        stateList.add(thisState.copy());
-                    }
+                thisState.time += dt;
+                nextEvent.time = thisState.time;
 
-                    thisState.modelIntervalIdx += 1;
-                }
+                applyLeapEvent(thisState, nextEvent, EpidemicEvent.INFECTION, nInfections);
+                applyLeapEvent(thisState, nextEvent, EpidemicEvent.RECOVERY, nRemovals - nRemoveSamples);
+                applyLeapEvent(thisState, nextEvent, EpidemicEvent.PSI_SAMPLE_REMOVE, nRemoveSamples);
+                applyLeapEvent(thisState, nextEvent, EpidemicEvent.PSI_SAMPLE_NOREMOVE, nNoRemoveSamples);
 
-                continue;
+                if (thisState.time < nextBoundaryTime)
+                    continue;
             }
 
-            if (thisState.time>=endTime)
+            // Reached next model event, conditioned sampling time or end
+            // of simulation.
+
+            if (nextModelEventOrSamplingTime > endTime) {
+                thisState.time = endTime;
                 break;
+            }
 
+            thisState.time = nextModelEventOrSamplingTime;
+            nextEvent.multiplicity = 1;
 
-            nextEvent.time = thisState.time;
+            if (nextModelEventOrSamplingTime == nextConditionedSamplingTime) {
+                if (!applyConditionedSample(thisState, nextEvent, nextConditionedSamplingTime))
+                    return false;
 
-            double u = totalPropensity*Randomizer.nextDouble();
+                nextConditionedSamplingIdx += 1;
 
-            for (int type = 0; type<EpidemicEvent.nTypes; type++) {
-                u -= model.propensities[type];
-
-                if (u<0) {
-                    nextEvent.type = type;
-                    break;
-                }
+            } else {
+                applyModelEvent(thisState, nextEvent);
             }
-
-            model.incrementState(thisState, nextEvent);
-            eventList.add(nextEvent);
-            stateList.add(thisState.copy());
         }
 
+        if (recordingGridSize > 0)
+            recordGridStates(thisState, Double.POSITIVE_INFINITY);
+
+        return true;
+    }
+
+    /**
+     * Draw the number of times a reaction which removes an individual
+     * from a compartment fires during a leap, assuming each individual
+     * present at the start of the leap is removed independently at the
+     * per-individual rate.
+     *
+     * @param n number of individuals in compartment
+     * @param propensity total reaction propensity
+     * @param dt leap size
+     * @return number of reactions
+     */
+    private static int nextBoundedCount(double n, double propensity, double dt) {
+        if (n <= 0.0 || propensity <= 0.0)
+            return 0;
+
+        return (int)RandomSource.RANDOMIZER.nextBinomial(Math.round(n),
+                -Math.expm1(-dt*propensity/n));
+    }
+
+    /**
+     * Apply and record a leap event of the given type, if it fired at
+     * least once.
+     *
+     * @param thisState state to modify
+     * @param event reusable event object holding the leap end time
+     * @param type event type
+     * @param multiplicity number of times event fired
+     */
+    private void applyLeapEvent(EpidemicState thisState, EpidemicEvent event, int type, int multiplicity) {
+        if (multiplicity <= 0)
+            return;
+
+        event.type = type;
+        event.multiplicity = multiplicity;
+        applyEvent(thisState, event);
+    }
+
+    /**
+     * Apply a psi-sampling event at a conditioned sampling time.
+     *
+     * @param thisState state to modify
+     * @param event reusable event object
+     * @param time conditioned sampling time
+     * @return false if there is no one to sample
+     */
+    private boolean applyConditionedSample(EpidemicState thisState, EpidemicEvent event, double time) {
+        if (thisState.I <= 0.0)
+            return false;
+
+        if (model.currentRemovalProb == 1.0 || Randomizer.nextDouble() < model.currentRemovalProb)
+            event.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
+        else
+            event.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
+
+        event.time = time;
+        applyEvent(thisState, event);
+
         return true;
     }
 
+    /**
+     * Apply the next model event, performing rho sampling if required,
+     * and advance to the next model interval.
+     *
+     * @param thisState state to modify
+     * @param event reusable event object
+     */
+    private void applyModelEvent(EpidemicState thisState, EpidemicEvent event) {
+        ModelEvent modelEvent = model.getNextModelEvent(thisState);
+
+        if (modelEvent.type == ModelEvent.Type.RHO_SAMPLING) {
+            event.type = EpidemicEvent.RHO_SAMPLE;
+
+            event.multiplicity = (int)RandomSource.RANDOMIZER.nextBinomial(
+                    Math.round(thisState.I), modelEvent.rho);
+
+            event.time = modelEvent.time;
+            thisState.time = modelEvent.time;
+
+            applyEvent(thisState, event);
+        }
+
+        thisState.modelIntervalIdx += 1;
+    }
+
+    /**
+     * Apply event to state and record the result.
+     *
+     * @param thisState state to modify
+     * @param event event to apply
+     */
+    private void applyEvent(EpidemicState thisState, EpidemicEvent event) {
+        if (recordingGridSize > 0)
+            recordGridStates(thisState, event.time);
+
+        model.incrementState(thisState, event);
+
+        if (event.isSample())
+            sampleCount += 1;
+
+        if (recordingGridSize == 0) {
+            addEvent(event);
+            addState(thisState);
+        }
+    }
+
+    /**
+     * Record the given state at each remaining grid time which precedes
+     * the given time.
+     *
+     * @param thisState current state
+     * @param untilTime time of next change to state
+     */
+    private void recordGridStates(EpidemicState thisState, double untilTime) {
+        double endTime = model.getOrigin();
+
+        while (nextGridIdx < recordingGridSize) {
+            double gridTime = endTime*nextGridIdx/(recordingGridSize-1);
+            if (gridTime >= untilTime)
+                break;
+
+            gridState.assignFrom(thisState);
+            gridState.time = gridTime;
+            addState(gridState);
+
+            nextGridIdx += 1;
+        }
+    }
+
     /**
      * Simulate an epidemic using the provided model with tau leaping.
      *
@@ -255,11 +562,10 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
         double dt = endTime/(nSteps-1);
 
-        eventList.clear();
-        stateList.clear();
+        clear();
 
         EpidemicState thisState = model.getInitialState();
-        stateList.add(model.getInitialState());
+        addState(model.getInitialState());
 
         thisState.time = 0;
 
@@ -280,7 +586,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                     Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.INFECTION]));
             model.incrementState(thisState, infectEvent);
             infectEvent.time = thisState.time + trueDt;
-            eventList.add(infectEvent);
+            addEvent(infectEvent);
 
             EpidemicEvent recovEvent = new EpidemicEvent();
             recovEvent.type = EpidemicEvent.RECOVERY;
@@ -288,7 +594,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                     Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.RECOVERY]));
             model.incrementState(thisState, recovEvent);
             recovEvent.time = thisState.time + trueDt;
-            eventList.add(recovEvent);
+            addEvent(recovEvent);
 
             EpidemicEvent psiSampRemoveEvent = new EpidemicEvent();
             psiSampRemoveEvent.type = EpidemicEvent.PSI_SAMPLE_REMOVE;
@@ -296,14 +602,14 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                     Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]));
             model.incrementState(thisState, psiSampRemoveEvent);
             psiSampRemoveEvent.time = thisState.time + trueDt;
-            eventList.add(psiSampRemoveEvent);
+            addEvent(psiSampRemoveEvent);
 
             EpidemicEvent psiSampNoRemoveEvent = new EpidemicEvent();
             psiSampNoRemoveEvent.type = EpidemicEvent.PSI_SAMPLE_NOREMOVE;
             psiSampNoRemoveEvent.multiplicity = Math.round(
                     Randomizer.nextPoisson(trueDt*model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]));
             psiSampNoRemoveEvent.time = thisState.time + trueDt;
-            eventList.add(psiSampNoRemoveEvent);
+            addEvent(psiSampNoRemoveEvent);
 
 
             if (trueDt < dt) {
@@ -321,8 +627,8 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
                     samplingEvent.time = nextConditionedSamplingTime;
                     model.incrementState(thisState, samplingEvent);
-                    eventList.add(samplingEvent);
-                    stateList.add(thisState.copy());
+                    addEvent(samplingEvent);
+                    addState(thisState);
 
                     remainingConditionedSamplingTimes.remove(0);
 
@@ -335,12 +641,8 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
                         rhoSampEvent.type = EpidemicEvent.RHO_SAMPLE;
                         rhoSampEvent.time = event.time;
 
-                        // Got to be a better way of sampling from a binomial distribution
-                        rhoSampEvent.multiplicity = 0;
-                        for (int i = 0; i < thisState.I; i++) {
-                            if (Randomizer.nextDouble() < event.rho)
-                                rhoSampEvent.multiplicity += 1;
-                        }
+                        rhoSampEvent.multiplicity = (int)RandomSource.RANDOMIZER.nextBinomial(
+                                Math.round(thisState.I), event.rho);
 
                         model.incrementState(thisState, rhoSampEvent);
                     }
@@ -358,7 +660,7 @@ public class SimulatedTrajectory extends EpidemicTrajectory {
 
             thisState.time += trueDt;
 
-            stateList.add(thisState.copy());
+            addState(thisState);
         }
 
         return true;
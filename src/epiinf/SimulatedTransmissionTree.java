@@ -29,7 +29,6 @@ import beast.base.util.Randomizer;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.TreeSet;
 
@@ -112,8 +111,10 @@ public class SimulatedTransmissionTree extends Tree {
         int nLeafSamples = 0, nNonleafSamples = 0;
         double cumulativeLeafFrac = 0;
 
-        for (EpidemicEvent event : traj.getEventList()) {
-            if (event.isSample()) {
+        for (int i=0; i<traj.getEventCount(); i++) {
+            if (EpidemicEvent.isSample(traj.getEventType(i))) {
+                EpidemicEvent event = new EpidemicEvent(traj.getEventTime(i),
+                        traj.getEventType(i), traj.getEventMultiplicity(i));
 
                 if (event.type == EpidemicEvent.RHO_SAMPLE
                         || event.type == EpidemicEvent.OTHER_SAMPLE
@@ -193,23 +194,26 @@ public class SimulatedTransmissionTree extends Tree {
 
         List<Node> activeNodes = new ArrayList<>();
 
-        List<EpidemicEvent> revEventList = traj.getEventList();
-        Collections.reverse(revEventList);
+        // Events and states are visited in reverse order, without
+        // materializing them as objects.  Sampling events are matched
+        // by time, as in the TreeSet comparisons.
+        int nEvents = traj.getEventCount();
+        int nStates = traj.getStateCount();
+        EpidemicEvent epidemicEvent = new EpidemicEvent();
 
-        List<EpidemicState> revStateList = traj.getStateList();
-        Collections.reverse(revStateList);
-        
         int nSequencedSamplingEventsSeen = 0;
-        for (int eidx=0; eidx<revEventList.size(); eidx++) {
-            
-            EpidemicEvent epidemicEvent = revEventList.get(eidx);
-            EpidemicState epidemicState = revStateList.get(eidx);
+        for (int eidx=0; eidx<nEvents; eidx++) {
+
+            epidemicEvent.time = traj.getEventTime(nEvents-1-eidx);
+            epidemicEvent.type = traj.getEventType(nEvents-1-eidx);
+            epidemicEvent.multiplicity = traj.getEventMultiplicity(nEvents-1-eidx);
 
-            if (sequencedSamplingEvents.contains(epidemicEvent))
+            boolean isSequenced = sequencedSamplingEvents.contains(epidemicEvent);
+            if (isSequenced)
                 nSequencedSamplingEventsSeen += 1;
 
             int k = activeNodes.size();
-            double N = epidemicState.I;
+            double N = traj.getI(nStates-1-eidx);
 
             for (int i=0; i<epidemicEvent.multiplicity; i++) {
 
@@ -239,7 +243,7 @@ public class SimulatedTransmissionTree extends Tree {
 
                     case EpidemicEvent.RHO_SAMPLE:
                     case EpidemicEvent.PSI_SAMPLE_REMOVE:
-                        if (!sequencedSamplingEvents.contains(epidemicEvent))
+                        if (!isSequenced)
                             break;
 
                         leaf = new Node();
@@ -251,7 +255,7 @@ public class SimulatedTransmissionTree extends Tree {
                         break;
 
                     case EpidemicEvent.PSI_SAMPLE_NOREMOVE:
-                        if (!sequencedSamplingEvents.contains(epidemicEvent))
+                        if (!isSequenced)
                             break;
 
                         leaf = new Node();
@@ -285,19 +289,15 @@ public class SimulatedTransmissionTree extends Tree {
         }
 
         // Record final tree sample offset
-        double offset = traj.origin - revEventList.get(0).time;
+        double offset = traj.origin - traj.getEventTime(nEvents-1);
         if (nLeafSamples>0) {
             finalTreeSampleOffsetInput.get().assignFromWithoutID(
                     new RealParameter(String.valueOf(offset)));
         }
 
         // Truncate trajectory at most recent sample if requested:
-        if (truncateTrajectory) {
-            while (revEventList.get(0).time>youngestSequencedSampTime) {
-                revEventList.remove(0);
-                revStateList.remove(0);
-            }
-        }
+        if (truncateTrajectory)
+            traj.truncateAfter(youngestSequencedSampTime);
 
         // Initialise state nodes
         if (!sequencedSamplingEvents.isEmpty())
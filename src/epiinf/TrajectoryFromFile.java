@@ -7,7 +7,7 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 
-public class TrajectoryFromFile extends EpidemicTrajectory {
+public class TrajectoryFromFile extends ColumnarEpidemicTrajectory {
 
     public Input<String> fileNameInput = new Input<>("fileName",
             "Name of file containing trajectory.",
@@ -17,6 +17,8 @@ public class TrajectoryFromFile extends EpidemicTrajectory {
 
     @Override
     public void initAndValidate() {
+        clear();
+
         try (BufferedReader reader = new BufferedReader(new FileReader(fileNameInput.get()))) {
 
             String header = reader.readLine();
@@ -36,7 +38,7 @@ public class TrajectoryFromFile extends EpidemicTrajectory {
                             Double.valueOf(strVals[3]));
                     state.time = Double.valueOf(strVals[0]);
 
-                    stateList.add(state);
+                    addState(state);
 
                 } else if (eventType.equals("END")) {
 
@@ -49,7 +51,7 @@ public class TrajectoryFromFile extends EpidemicTrajectory {
                             .setTime(Double.valueOf(strVals[0]))
                             .setMultiplicity(Integer.valueOf(strVals[5]));
 
-                    eventList.add(event);
+                    addEvent(event);
 
                     EpidemicState state = new EpidemicState(
                             Double.valueOf(strVals[1]),
@@ -57,7 +59,7 @@ public class TrajectoryFromFile extends EpidemicTrajectory {
                             Double.valueOf(strVals[3]));
                     state.time = event.time;
 
-                    stateList.add(state);
+                    addState(state);
                 }
             }
 
@@ -23,8 +23,11 @@ import beast.base.core.Input;
 import beast.base.core.Loggable;
 import epiinf.distribs.SMCTreeDensity;
 import epiinf.models.EpidemicModel;
+import epiinf.util.AsyncLogWriter;
+import epiinf.util.DeduplicatedLogExpander;
 
 import java.io.PrintStream;
+import java.util.List;
 
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
@@ -39,19 +42,59 @@ public class TrajectoryLogger extends CalculationNode implements Loggable {
             "Force density recalculation and logs most recent trajectory. Do not use in a standard " +
                     "PMMH analysis!  Defaults to false.", false);
 
+    public Input<Integer> refreshIntervalInput = new Input<>("refreshInterval",
+            "When logging the most recent trajectory, only recalculate the " +
+                    "density on every refreshInterval-th log, otherwise logging " +
+                    "the trajectory from the last density evaluation.  Zero " +
+                    "means never recalculate.  Defaults to 1.", 1);
+
+    public Input<Boolean> deduplicateInput = new Input<>("deduplicate",
+            "Replace trajectories identical to the previously logged one " +
+                    "with a back-reference to that log line.  Expand these " +
+                    "using DeduplicatedLogExpander.  Defaults to false.", false);
+
+    public Input<String> asyncFileNameInput = new Input<>("asyncFileName",
+            "If provided, trajectories are written to this file on a " +
+                    "background thread instead of to the log this logger " +
+                    "is attached to.");
+
+    public Input<Integer> asyncQueueCapacityInput = new Input<>("asyncQueueCapacity",
+            "Maximum number of trajectories awaiting output in asynchronous " +
+                    "mode before logging blocks.  Defaults to 16.", 16);
+
     SMCTreeDensity treeDensity;
     EpidemicModel model;
 
+    long logCount;
+
+    AsyncLogWriter asyncWriter;
+
+    EpidemicTrajectory lastLoggedTrajectory;
+    long lastLoggedSample;
+
     public TrajectoryLogger() { }
 
     @Override
     public void initAndValidate() {
         treeDensity = treeDensityInput.get();
         model = treeDensity.modelInput.get();
+
+        if (logMostRecentTrajectoryInput.get())
+            treeDensity.requireLastEvaluatedTrajectory();
+
+        if (refreshIntervalInput.get() < 0)
+            throw new IllegalArgumentException("refreshInterval must be non-negative.");
     }
 
     @Override
     public void init(PrintStream out) {
+        if (asyncFileNameInput.get() != null) {
+            asyncWriter = new AsyncLogWriter(asyncFileNameInput.get(),
+                    getID() == null ? "trajectory" : getID(),
+                    asyncQueueCapacityInput.get());
+            return;
+        }
+
         if (getID() == null)
             out.print("trajectory\t");
         else
@@ -63,42 +106,76 @@ public class TrajectoryLogger extends CalculationNode implements Loggable {
 
         EpidemicTrajectory traj;
         if (logMostRecentTrajectoryInput.get()) {
-            traj = treeDensity.getMostRecentTrajectory();
+            int refreshInterval = refreshIntervalInput.get();
+            if (refreshInterval > 0 && logCount % refreshInterval == 0)
+                traj = treeDensity.getMostRecentTrajectory();
+            else
+                traj = treeDensity.getLastEvaluatedTrajectory();
+
+            logCount += 1;
         } else {
             traj = treeDensity.getConditionedTrajectory();
         }
 
         if (traj == null || traj.getStateList().isEmpty()) {
-            out.print("NA\t");
+            if (asyncWriter != null)
+                asyncWriter.submit(nSample, ps -> ps.print("NA"));
+            else
+                out.print("NA\t");
             return;
         }
 
-        boolean isFirst = true;
-        for (EpidemicState state : traj.getStateList()) {
-            if (!isFirst)
-                out.print(",");
+        // Trajectories are never modified once created, so identity
+        // implies that nothing has changed since the last log.
+        if (deduplicateInput.get() && traj == lastLoggedTrajectory) {
+            String backReference = DeduplicatedLogExpander.getBackReference(lastLoggedSample);
+            if (asyncWriter != null)
+                asyncWriter.submit(nSample, ps -> ps.print(backReference));
             else
-                isFirst = false;
+                out.print(backReference + "\t");
+            return;
+        }
+        lastLoggedTrajectory = traj;
+        lastLoggedSample = nSample;
 
-            out.print(treeDensity.getModel().getOrigin() - state.time);
+        List<EpidemicState> states = traj.getStateList();
+        double origin = traj.getOrigin();
 
-            out.print(":" + state.S + ":" + state.I + ":" + state.R + ":" + state.algorithm);
+        // The density only holds the series of its latest trajectories,
+        // so it is obtained here even when formatting is deferred.
+        DerivedTrajectorySeries series = treeDensity.getDerivedSeries(traj);
+
+        if (asyncWriter != null) {
+            asyncWriter.submit(nSample, ps -> printTrajectory(ps, states, origin, series));
+        } else {
+            printTrajectory(out, states, origin, series);
+            out.print("\t");
+        }
+    }
 
-            model.calculatePropensities(state);
-            double reproductiveNumber = model.propensities[EpidemicEvent.INFECTION]/
-                    (model.propensities[EpidemicEvent.RECOVERY] + model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]);
+    private static void printTrajectory(PrintStream out, List<EpidemicState> states, double origin,
+                                        DerivedTrajectorySeries series) {
+        for (int i=0; i<states.size(); i++) {
+            EpidemicState state = states.get(i);
 
-            double incidence = model.propensities[EpidemicEvent.INFECTION];
+            if (i > 0)
+                out.print(",");
 
-            out.print(":" + incidence + ":" + reproductiveNumber);
+            out.print(origin - state.time);
+
+            out.print(":" + state.S + ":" + state.I + ":" + state.R + ":" + state.algorithm);
+
+            out.print(":" + series.incidence[i] + ":" + series.reproductiveNumber[i]);
 
             out.print(":" + state.cumulativeInfections);
         }
-
-        out.print("\t");
     }
 
-
     @Override
-    public void close(PrintStream out) { }
+    public void close(PrintStream out) {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+            asyncWriter = null;
+        }
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.models.EpidemicModel;
+import epiinf.util.P2QuantileEstimator;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Accumulates posterior median and credible interval bounds of " +
+        "prevalence, incidence and Re on a grid of ages using constant-memory " +
+        "streaming quantile estimates, writing these to a file at the end of " +
+        "the run.  Produces no output in the log it is attached to.")
+public class TrajectorySummaryLogger extends BEASTObject implements Loggable {
+
+    public Input<SMCTreeDensity> treeDensityInput = new Input<>("treeDensity",
+            "SMC Tree density from which to summarize trajectories.",
+            Input.Validate.REQUIRED);
+
+    public Input<String> fileNameInput = new Input<>("fileName",
+            "Name of file to write summary to.",
+            Input.Validate.REQUIRED);
+
+    public Input<Double> maxAgeInput = new Input<>("maxAge",
+            "Oldest age on summary grid.  Defaults to the origin at the " +
+                    "first summarized sample.");
+
+    public Input<Integer> gridSizeInput = new Input<>("gridSize",
+            "Number of evenly spaced ages on summary grid.  Defaults to 101.",
+            101);
+
+    public Input<Integer> burninInput = new Input<>("burnin",
+            "Number of MCMC samples to discard before summarizing. " +
+                    "Defaults to 0.", 0);
+
+    public Input<Double> credibleLevelInput = new Input<>("credibleLevel",
+            "Probability mass contained in the (equal-tailed) credible " +
+                    "interval.  Defaults to 0.95.", 0.95);
+
+    private static final String[] QUANTITIES = {"prevalence", "incidence", "Re"};
+
+    SMCTreeDensity treeDensity;
+    EpidemicModel model;
+
+    double[] gridAges;
+    P2QuantileEstimator[][][] estimators;
+    double[] values = new double[QUANTITIES.length];
+
+    public TrajectorySummaryLogger() { }
+
+    @Override
+    public void initAndValidate() {
+        treeDensity = treeDensityInput.get();
+        model = treeDensity.modelInput.get();
+
+        if (gridSizeInput.get() < 2)
+            throw new IllegalArgumentException("gridSize must be at least 2.");
+
+        double level = credibleLevelInput.get();
+        if (level <= 0.0 || level >= 1.0)
+            throw new IllegalArgumentException("credibleLevel must lie in (0,1).");
+
+        double[] probs = {0.5*(1.0 - level), 0.5, 0.5*(1.0 + level)};
+
+        estimators = new P2QuantileEstimator[QUANTITIES.length][gridSizeInput.get()][probs.length];
+        for (P2QuantileEstimator[][] quantityEstimators : estimators) {
+            for (P2QuantileEstimator[] pointEstimators : quantityEstimators) {
+                for (int k=0; k<probs.length; k++)
+                    pointEstimators[k] = new P2QuantileEstimator(probs[k]);
+            }
+        }
+
+        gridAges = null;
+    }
+
+    @Override
+    public void init(PrintStream out) { }
+
+    @Override
+    public void log(long nSample, PrintStream out) {
+        if (nSample < burninInput.get())
+            return;
+
+        EpidemicTrajectory traj = treeDensity.getConditionedTrajectory();
+        if (traj == null || traj.getStateList().isEmpty())
+            return;
+
+        double origin = traj.getOrigin();
+
+        if (gridAges == null) {
+            double maxAge = maxAgeInput.get() != null ? maxAgeInput.get() : origin;
+            int n = gridSizeInput.get();
+
+            gridAges = new double[n];
+            for (int g=0; g<n; g++)
+                gridAges[g] = maxAge*g/(n-1);
+        }
+
+        // Walk forward in time (backward through the ages), holding the
+        // most recent state preceding each grid time.
+        List<EpidemicState> states = traj.getStateList();
+        DerivedTrajectorySeries series = treeDensity.getDerivedSeries(traj);
+        int stateIdx = 0;
+        for (int g=gridAges.length-1; g>=0; g--) {
+            double t = origin - gridAges[g];
+            if (t < 0)
+                continue;
+
+            while (stateIdx < states.size()-1 && states.get(stateIdx+1).time <= t)
+                stateIdx += 1;
+
+            values[0] = states.get(stateIdx).I;
+            values[1] = series.incidence[stateIdx];
+            values[2] = series.reproductiveNumber[stateIdx];
+
+            for (int v=0; v<QUANTITIES.length; v++) {
+                for (P2QuantileEstimator estimator : estimators[v][g])
+                    estimator.add(values[v]);
+            }
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (gridAges == null)
+            return;
+
+        try (PrintStream ps = new PrintStream(fileNameInput.get())) {
+            ps.print("age\tn");
+            for (String quantity : QUANTITIES)
+                ps.print("\t" + quantity + "_lower\t" + quantity + "_median\t" + quantity + "_upper");
+            ps.println();
+
+            for (int g=0; g<gridAges.length; g++) {
+                ps.print(gridAges[g] + "\t" + estimators[0][g][1].getCount());
+                for (int v=0; v<QUANTITIES.length; v++) {
+                    for (P2QuantileEstimator estimator : estimators[v][g])
+                        ps.print("\t" + estimator.getQuantile());
+                }
+                ps.println();
+            }
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeException("Error writing to file "
+                    + fileNameInput.get() + ".");
+        }
+    }
+}
@@ -0,0 +1,644 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import epiinf.EpidemicEvent;
+import epiinf.EpidemicState;
+import epiinf.ModelEvent;
+import epiinf.ObservedEvent;
+import epiinf.models.EpidemicModel;
+import epiinf.util.RandomSource;
+import epiinf.util.ReplacementSampler;
+import epiinf.util.SeededRandomSource;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Two-level Monte Carlo estimator of the tree density.  The expectation of
+ * a cheap (coarse) SMC estimate using tau leaping is estimated by
+ * averaging several independent coarse evaluations.  The difference
+ * between the expectations of the exact (fine) estimate and the coarse
+ * estimate is then estimated from a few runs of a coupled particle filter.
+ *
+ * Each particle of the coupled filter is a pair of fine and coarse
+ * trajectories simulated together using the coupling of Anderson and
+ * Higham (Multiscale Model. Simul., 2012): over each coarse leap, each
+ * reaction is split into a channel shared by both trajectories, with
+ * propensity the smaller of the fine and coarse propensities, and
+ * channels private to each trajectory carrying the remainder.  Pairs are
+ * resampled after every observed event using a maximal coupling of the
+ * fine and coarse weights, so both members of a pair usually share an
+ * ancestor.  Each level of the coupled filter is on its own an ordinary
+ * particle filter, so the combined estimate has the expectation of the
+ * exact density.
+ *
+ * Because the correction term is a difference, the combined estimate may
+ * be negative.  By default non-positive estimates are reported as a zero
+ * density, which biases the estimator.  Alternatively, the density can
+ * report the absolute value of the estimate and log its sign, for use
+ * with signed pseudo-marginal MCMC (Lyne et al., Stat. Sci., 2015), in
+ * which posterior expectations are sign-weighted averages over the chain.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+@Description("Multilevel estimate of tree density, combining many coarse " +
+        "(tau leaping) SMC evaluations with a few runs of a particle filter " +
+        "coupling fine (exact) and coarse trajectories.")
+public class MultilevelSMCTreeDensity extends Distribution {
+
+    public Input<SMCTreeDensity> coarseDensityInput = new Input<>(
+            "coarseDensity",
+            "Cheap SMC tree density using useTauLeaping, without " +
+                    "useBinomialLeaping or relStdThresh.",
+            Input.Validate.REQUIRED);
+
+    public Input<SMCTreeDensity> fineDensityInput = new Input<>(
+            "fineDensity",
+            "Exact SMC tree density for the same tree and model, without " +
+                    "tau leaping.  Its nParticles sets the number of particle " +
+                    "pairs used by the coupled filter.",
+            Input.Validate.REQUIRED);
+
+    public Input<Integer> coarseEvaluationsInput = new Input<>(
+            "coarseEvaluations",
+            "Number of independent coarse evaluations.", 4);
+
+    public Input<Integer> correctionPairsInput = new Input<>(
+            "correctionPairs",
+            "Number of coupled fine/coarse particle filter runs.", 1);
+
+    public Input<Boolean> signedInput = new Input<>(
+            "signed",
+            "Report the absolute value of negative estimates and log the " +
+                    "sign of the estimate, for signed pseudo-marginal " +
+                    "inference.  Otherwise negative estimates are reported " +
+                    "as a zero density.", false);
+
+    SMCTreeDensity coarseDensity, fineDensity;
+    EpidemicModel model;
+    double[] coarseLogP, pairedFineLogP, pairedCoarseLogP;
+
+    int sign, storedSign;
+
+    // Coupled filter state.  Rates are, in order, the unobserved infection
+    // propensity, the allowed recovery propensity and the total propensity
+    // of events forbidden by the tree.
+    int nPairs;
+    EpidemicState[] fineStates, coarseStates, fineStatesNew, coarseStatesNew;
+    double[] fineLogWeights, coarseLogWeights;
+    double[] fineRates = new double[3], coarseRates = new double[3];
+    SeededRandomSource eventRandom = new SeededRandomSource();
+
+    @Override
+    public void initAndValidate() {
+        coarseDensity = coarseDensityInput.get();
+        fineDensity = fineDensityInput.get();
+
+        if (coarseDensity == fineDensity)
+            throw new IllegalArgumentException("Coarse and fine densities must differ.");
+
+        if (coarseDensity.treeInput.get() != fineDensity.treeInput.get()
+                || coarseDensity.incidenceParamInput.get() != fineDensity.incidenceParamInput.get()
+                || coarseDensity.incidenceDataInput.get() != fineDensity.incidenceDataInput.get()
+                || coarseDensity.getModel() != fineDensity.getModel())
+            throw new IllegalArgumentException("Coarse and fine densities must " +
+                    "share the same tree, incidence data and model.");
+
+        for (SMCTreeDensity density : new SMCTreeDensity[] {coarseDensity, fineDensity}) {
+            if (density.useAliveFilterInput.get() || density.useRQMCInput.get()
+                    || density.lookaheadEventsInput.get() > 0)
+                throw new IllegalArgumentException("Multilevel estimation cannot " +
+                        "use densities with useAliveFilter, useRQMC or lookaheadEvents.");
+        }
+
+        if (fineDensity.useTauLeapingInput.get())
+            throw new IllegalArgumentException("fineDensity must not use tau leaping.");
+
+        if (coarseDensity.useBinomialLeapingInput.get() || coarseDensity.relStdThreshInput.get() > 0.0)
+            throw new IllegalArgumentException("coarseDensity must use Poisson tau " +
+                    "leaping, without useBinomialLeaping or relStdThresh.");
+
+        if (coarseEvaluationsInput.get() < 1 || correctionPairsInput.get() < 1)
+            throw new IllegalArgumentException("coarseEvaluations and " +
+                    "correctionPairs must be positive.");
+
+        model = fineDensity.getModel();
+
+        coarseLogP = new double[coarseEvaluationsInput.get()];
+        pairedFineLogP = new double[correctionPairsInput.get()];
+        pairedCoarseLogP = new double[correctionPairsInput.get()];
+
+        nPairs = fineDensity.nParticlesInput.get();
+        fineStates = new EpidemicState[nPairs];
+        coarseStates = new EpidemicState[nPairs];
+        fineStatesNew = new EpidemicState[nPairs];
+        coarseStatesNew = new EpidemicState[nPairs];
+        for (int p=0; p<nPairs; p++) {
+            fineStates[p] = new EpidemicState();
+            coarseStates[p] = new EpidemicState();
+            fineStatesNew[p] = new EpidemicState();
+            coarseStatesNew[p] = new EpidemicState();
+        }
+        fineLogWeights = new double[nPairs];
+        coarseLogWeights = new double[nPairs];
+
+        sign = 1;
+    }
+
+    @Override
+    public double calculateLogP() {
+
+        for (int i=0; i<coarseLogP.length; i++)
+            coarseLogP[i] = coarseDensity.calculateLogP();
+
+        double[] pairedLogP = new double[2];
+        for (int j=0; j<pairedFineLogP.length; j++) {
+            calculateCoupledLogP(pairedLogP);
+            pairedFineLogP[j] = pairedLogP[0];
+            pairedCoarseLogP[j] = pairedLogP[1];
+        }
+
+        // Combine estimates relative to the largest, to avoid underflow.
+        double maxLogP = Double.NEGATIVE_INFINITY;
+        for (double x : coarseLogP)
+            maxLogP = Math.max(maxLogP, x);
+        for (int j=0; j<pairedFineLogP.length; j++)
+            maxLogP = Math.max(maxLogP, Math.max(pairedFineLogP[j], pairedCoarseLogP[j]));
+
+        sign = 1;
+
+        if (maxLogP == Double.NEGATIVE_INFINITY) {
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        double coarseMean = 0.0;
+        for (double x : coarseLogP)
+            coarseMean += Math.exp(x - maxLogP);
+        coarseMean /= coarseLogP.length;
+
+        double correctionMean = 0.0;
+        for (int j=0; j<pairedFineLogP.length; j++)
+            correctionMean += Math.exp(pairedFineLogP[j] - maxLogP)
+                    - Math.exp(pairedCoarseLogP[j] - maxLogP);
+        correctionMean /= pairedFineLogP.length;
+
+        double estimate = coarseMean + correctionMean;
+        if (estimate < 0.0 && signedInput.get()) {
+            sign = -1;
+            estimate = -estimate;
+        }
+
+        logP = estimate > 0.0
+                ? maxLogP + Math.log(estimate)
+                : Double.NEGATIVE_INFINITY;
+
+        return logP;
+    }
+
+    /**
+     * @return sign of the most recent combined estimate
+     */
+    public int getSign() {
+        return sign;
+    }
+
+    /**
+     * Run the coupled fine/coarse particle filter.
+     *
+     * @param result array to receive the fine and coarse log density estimates
+     */
+    void calculateCoupledLogP(double[] result) {
+        result[0] = 0.0;
+        result[1] = 0.0;
+
+        List<ObservedEvent> events = fineDensity.observedEventsList.getEventList();
+        if (events.get(0).time < 0) {
+            result[0] = Double.NEGATIVE_INFINITY;
+            result[1] = Double.NEGATIVE_INFINITY;
+            return;
+        }
+
+        for (int p=0; p<nPairs; p++) {
+            fineStates[p].assignFrom(model.getInitialState());
+            coarseStates[p].assignFrom(model.getInitialState());
+            fineLogWeights[p] = 0.0;
+            coarseLogWeights[p] = 0.0;
+        }
+
+        // Removal choices at observed events use common random numbers.
+        RandomSource defaultRandom = fineDensity.random;
+        fineDensity.random = eventRandom;
+
+        try {
+            for (ObservedEvent event : events) {
+                for (int p=0; p<nPairs; p++)
+                    propagatePair(p, event);
+
+                result[0] += getLogMeanWeight(fineLogWeights);
+                result[1] += getLogMeanWeight(coarseLogWeights);
+
+                if (result[0] == Double.NEGATIVE_INFINITY
+                        && result[1] == Double.NEGATIVE_INFINITY)
+                    return;
+
+                if (event.type != ObservedEvent.Type.OBSERVATION_END)
+                    resamplePairs(result[0] > Double.NEGATIVE_INFINITY,
+                            result[1] > Double.NEGATIVE_INFINITY);
+            }
+        } finally {
+            fineDensity.random = defaultRandom;
+        }
+    }
+
+    /**
+     * Propagate a fine/coarse particle pair to the next observed event and
+     * update the weights of both members.  A member with zero weight is
+     * left unchanged while the other is propagated alone.
+     *
+     * @param p index of particle pair
+     * @param event next observed event
+     */
+    private void propagatePair(int p, ObservedEvent event) {
+        EpidemicState fine = fineStates[p], coarse = coarseStates[p];
+        boolean fineAlive = fineLogWeights[p] > Double.NEGATIVE_INFINITY;
+        boolean coarseAlive = coarseLogWeights[p] > Double.NEGATIVE_INFINITY;
+
+        if (!fineAlive && !coarseAlive)
+            return;
+
+        double maxLeapSize = model.getOrigin()/coarseDensity.minLeapCount;
+        double fineLogWeight = 0.0, coarseLogWeight = 0.0;
+
+        // The two members share their time and model interval throughout.
+        double t = fine.time;
+        while (true) {
+            ModelEvent modelEvent = model.getNextModelEvent(fine);
+            double modelEventTime = model.getNextModelEventTime(fine);
+            double endTime = Math.min(modelEventTime, event.time);
+
+            getRates(coarse, event.lineages, coarseAlive, coarseRates);
+
+            // Coarse member leaps to stepEnd, or otherwise steps like the SSA.
+            boolean leap = false;
+            double stepEnd = endTime;
+            if (coarseAlive && coarseDensity.useTauLeaping) {
+                double tau = maxLeapSize;
+                if (coarseDensity.epsilon > 0.0)
+                    tau = Math.min(maxLeapSize, model.getTau(coarseDensity.epsilon,
+                            coarse, coarseRates[0], coarseRates[1]));
+
+                if (tau >= 10.0/(coarseRates[0] + coarseRates[1])) {
+                    leap = true;
+                    stepEnd = Math.min(t + tau, endTime);
+                }
+            }
+
+            int coarseInfections = 0, coarseRecoveries = 0;
+            boolean stepComplete = false;
+            while (true) {
+                getRates(fine, event.lineages, fineAlive, fineRates);
+
+                double sharedInfectProp = Math.min(fineRates[0], coarseRates[0]);
+                double sharedRecovProp = Math.min(fineRates[1], coarseRates[1]);
+                double totalProp = Math.max(fineRates[0], coarseRates[0])
+                        + Math.max(fineRates[1], coarseRates[1]);
+
+                double dt = totalProp > 0.0
+                        ? Randomizer.nextExponential(totalProp)
+                        : Double.POSITIVE_INFINITY;
+
+                double trueDt = Math.min(dt, stepEnd - t);
+                fineLogWeight -= trueDt*fineRates[2];
+                coarseLogWeight -= trueDt*coarseRates[2];
+
+                t += dt;
+                if (t >= stepEnd) {
+                    t = stepEnd;
+                    stepComplete = true;
+                    break;
+                }
+                fine.time = t;
+
+                // Choose among shared and private channels of each reaction.
+                boolean fineInfect = false, fineRecov = false;
+                boolean coarseInfect = false, coarseRecov = false;
+                double u = Randomizer.nextDouble()*totalProp;
+                if (u < sharedInfectProp) {
+                    fineInfect = coarseInfect = true;
+                } else if ((u -= sharedInfectProp) < fineRates[0] - sharedInfectProp) {
+                    fineInfect = true;
+                } else if ((u -= fineRates[0] - sharedInfectProp) < coarseRates[0] - sharedInfectProp) {
+                    coarseInfect = true;
+                } else {
+                    u -= coarseRates[0] - sharedInfectProp;
+                    if (u < sharedRecovProp)
+                        fineRecov = coarseRecov = true;
+                    else if (u - sharedRecovProp < fineRates[1] - sharedRecovProp)
+                        fineRecov = true;
+                    else
+                        coarseRecov = true;
+                }
+
+                if (fineInfect)
+                    model.incrementState(fine, EpidemicEvent.Infection);
+                if (fineRecov)
+                    model.incrementState(fine, EpidemicEvent.Recovery);
+
+                if (coarseInfect)
+                    coarseInfections += 1;
+                if (coarseRecov)
+                    coarseRecoveries += 1;
+
+                // Without a leap, coarse events take effect immediately and
+                // the next coarse step is chosen from the new state.
+                if (!leap && (coarseInfect || coarseRecov))
+                    break;
+            }
+
+            if (coarseInfections > 0)
+                model.incrementState(coarse, EpidemicEvent.MultipleInfections(coarseInfections));
+            if (coarseRecoveries > 0)
+                model.incrementState(coarse, EpidemicEvent.MultipleRecoveries(coarseRecoveries));
+
+            if (coarseAlive && (!coarse.isValid() || coarse.I < event.lineages)) {
+                coarseAlive = false;
+                coarseLogWeight = Double.NEGATIVE_INFINITY;
+            }
+
+            fine.time = t;
+            coarse.time = t;
+
+            if (!stepComplete || stepEnd < endTime)
+                continue;
+
+            if (modelEventTime < event.time) {
+                if (modelEvent.type == ModelEvent.Type.RHO_SAMPLING) {
+                    // Probability that rho sampling produced no samples
+                    fineLogWeight += fine.I*Math.log(1.0 - modelEvent.rho);
+                    coarseLogWeight += coarse.I*Math.log(1.0 - modelEvent.rho);
+                }
+                fine.modelIntervalIdx += 1;
+                coarse.modelIntervalIdx += 1;
+                continue;
+            }
+
+            break;
+        }
+
+        // Include probability of observed event, using the same random
+        // numbers for both members.
+        if (event.type != ObservedEvent.Type.OBSERVATION_END) {
+            ModelEvent modelEvent = model.getNextModelEvent(fine);
+            double modelEventTime = model.getNextModelEventTime(fine);
+            long seed = Randomizer.nextLong();
+
+            if (fineAlive) {
+                eventRandom.setSeed(seed);
+                fineLogWeight += fineDensity.getObservedEventProbability(fine,
+                        event, event.time, modelEvent, modelEventTime);
+            }
+
+            if (coarseAlive) {
+                eventRandom.setSeed(seed);
+                coarseLogWeight += fineDensity.getObservedEventProbability(coarse,
+                        event, event.time, modelEvent, modelEventTime);
+            }
+        } else {
+            fine.time = model.getOrigin();
+            coarse.time = model.getOrigin();
+        }
+
+        fine.observedEventIdx += 1;
+        coarse.observedEventIdx += 1;
+
+        fineLogWeights[p] += fine.isValid() ? fineLogWeight : Double.NEGATIVE_INFINITY;
+        coarseLogWeights[p] += coarse.isValid() ? coarseLogWeight : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Compute the propensities of the reactions allowed by the tree, and
+     * the total propensity of those it forbids, before the next observed
+     * event.
+     *
+     * @param state epidemic state
+     * @param lineages number of tree lineages
+     * @param alive false if the state has zero weight, in which case all
+     *              propensities are zero
+     * @param rates array to receive propensities
+     */
+    private void getRates(EpidemicState state, int lineages, boolean alive, double[] rates) {
+        if (!alive) {
+            rates[0] = 0.0;
+            rates[1] = 0.0;
+            rates[2] = 0.0;
+            return;
+        }
+
+        model.calculatePropensities(state);
+
+        double infectionProp = model.propensities[EpidemicEvent.INFECTION];
+        double unobservedInfectProp = state.I > 0
+                ? infectionProp*(1.0 - lineages*(lineages - 1)/state.I/(state.I + 1))
+                : 0.0;
+
+        double allowedRecovProp = 0.0, forbiddenRecovProp = 0.0;
+        if (state.I > lineages)
+            allowedRecovProp = model.propensities[EpidemicEvent.RECOVERY];
+        else
+            forbiddenRecovProp = model.propensities[EpidemicEvent.RECOVERY];
+
+        rates[0] = unobservedInfectProp;
+        rates[1] = allowedRecovProp;
+        rates[2] = model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
+                + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]
+                + infectionProp - unobservedInfectProp + forbiddenRecovProp;
+    }
+
+    /**
+     * @param logWeights log weights
+     * @return log of mean weight
+     */
+    private static double getLogMeanWeight(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double x : logWeights)
+            maxLogWeight = Math.max(maxLogWeight, x);
+
+        if (maxLogWeight == Double.NEGATIVE_INFINITY)
+            return maxLogWeight;
+
+        double sum = 0.0;
+        for (double x : logWeights)
+            sum += Math.exp(x - maxLogWeight);
+
+        return maxLogWeight + Math.log(sum/logWeights.length);
+    }
+
+    /**
+     * Normalise log weights.
+     *
+     * @param logWeights log weights
+     * @return normalised weights
+     */
+    private static double[] getNormalisedWeights(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double x : logWeights)
+            maxLogWeight = Math.max(maxLogWeight, x);
+
+        double[] weights = new double[logWeights.length];
+        double sum = 0.0;
+        for (int p=0; p<weights.length; p++) {
+            weights[p] = Math.exp(logWeights[p] - maxLogWeight);
+            sum += weights[p];
+        }
+
+        for (int p=0; p<weights.length; p++)
+            weights[p] /= sum;
+
+        return weights;
+    }
+
+    /**
+     * Resample particle pairs using a maximal coupling of the fine and
+     * coarse resampling distributions: with probability equal to the
+     * overlap of the two weight distributions both members of a new pair
+     * share an ancestor, and otherwise their ancestors are drawn
+     * independently from the non-overlapping parts.  Either level on its
+     * own is resampled multinomially.
+     *
+     * @param fineAlive false if all fine weights are zero
+     * @param coarseAlive false if all coarse weights are zero
+     */
+    private void resamplePairs(boolean fineAlive, boolean coarseAlive) {
+        // A level with no surviving particles simply follows the other.
+        double[] fineWeights = getNormalisedWeights(fineAlive ? fineLogWeights : coarseLogWeights);
+        double[] coarseWeights = getNormalisedWeights(coarseAlive ? coarseLogWeights : fineLogWeights);
+
+        double[] sharedWeights = new double[nPairs];
+        double overlap = 0.0;
+        for (int p=0; p<nPairs; p++) {
+            sharedWeights[p] = Math.min(fineWeights[p], coarseWeights[p]);
+            overlap += sharedWeights[p];
+        }
+
+        ReplacementSampler sharedSampler = null, fineSampler = null, coarseSampler = null;
+        if (overlap > 0.0) {
+            for (int p=0; p<nPairs; p++)
+                sharedWeights[p] /= overlap;
+            sharedSampler = new ReplacementSampler(sharedWeights);
+        }
+
+        if (overlap < 1.0 - 1e-12) {
+            for (int p=0; p<nPairs; p++) {
+                double shared = Math.min(fineWeights[p], coarseWeights[p]);
+                fineWeights[p] = (fineWeights[p] - shared)/(1.0 - overlap);
+                coarseWeights[p] = (coarseWeights[p] - shared)/(1.0 - overlap);
+            }
+            fineSampler = new ReplacementSampler(fineWeights);
+            coarseSampler = new ReplacementSampler(coarseWeights);
+        } else
+            overlap = 1.0;
+
+        for (int p=0; p<nPairs; p++) {
+            int fineAncestor, coarseAncestor;
+            if (Randomizer.nextDouble() < overlap) {
+                fineAncestor = sharedSampler.next();
+                coarseAncestor = fineAncestor;
+            } else {
+                fineAncestor = fineSampler.next();
+                coarseAncestor = coarseSampler.next();
+            }
+
+            fineStatesNew[p].assignFrom(fineStates[fineAncestor]);
+            coarseStatesNew[p].assignFrom(coarseStates[coarseAncestor]);
+        }
+
+        EpidemicState[] tmp = fineStates;
+        fineStates = fineStatesNew;
+        fineStatesNew = tmp;
+
+        tmp = coarseStates;
+        coarseStates = coarseStatesNew;
+        coarseStatesNew = tmp;
+
+        for (int p=0; p<nPairs; p++) {
+            fineLogWeights[p] = fineAlive ? 0.0 : Double.NEGATIVE_INFINITY;
+            coarseLogWeights[p] = coarseAlive ? 0.0 : Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        super.init(out);
+
+        if (signedInput.get())
+            out.print(getID() + ".sign\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        super.log(sample, out);
+
+        if (signedInput.get())
+            out.print(sign + "\t");
+    }
+
+    @Override
+    public void store() {
+        storedSign = sign;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        sign = storedSign;
+        super.restore();
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        return true;
+    }
+
+    @Override
+    public boolean isStochastic() {
+        return true;
+    }
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+        throw new UnsupportedOperationException("Sampling not supported.");
+    }
+}
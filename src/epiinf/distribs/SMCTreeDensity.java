@@ -22,16 +22,22 @@ import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.core.Log;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.tree.TreeDistribution;
 import beast.base.util.Binomial;
 import beast.base.util.GammaFunction;
-import beast.base.util.Randomizer;
 import epiinf.*;
 import epiinf.models.EpidemicModel;
+import epiinf.util.OffHeapParticleEnsemble;
+import epiinf.util.RQMCRandomSource;
+import epiinf.util.RandomSource;
 import epiinf.util.ReplacementSampler;
+import epiinf.util.SeededRandomSource;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -73,6 +79,85 @@ public class SMCTreeDensity extends TreeDistribution {
             "reaction firings below which deterministic approximation will be used. " +
             "Set to zero to turn off.", 0.0);
 
+    public Input<Boolean> useBinomialLeapingInput = new Input<>(
+            "useBinomialLeaping", "Draw numbers of infections and recoveries " +
+            "within each tau leap from binomial distributions bounded by the " +
+            "available susceptible individuals and the infected individuals " +
+            "not ancestral to the tree, instead of from Poisson distributions. " +
+            "Leaps then never invalidate a particle.", false);
+
+    public Input<Boolean> useAliveFilterInput = new Input<>(
+            "useAliveFilter",
+            "At each observed event, keep drawing and propagating particles " +
+                    "from the weighted ensemble until nParticles+1 of them " +
+                    "survive, rather than propagating a fixed number.  The " +
+                    "likelihood estimate remains unbiased.  Resampling then " +
+                    "occurs at every observed event and resampThresh is " +
+                    "ignored.  Cannot be used with REPLAY trajectory " +
+                    "recording or off-heap storage.", false);
+
+    public Input<Integer> aliveMaxTrialsInput = new Input<>(
+            "aliveMaxTrials",
+            "Maximum number of propagations per observed event when using " +
+                    "the alive filter, as a multiple of nParticles.  If " +
+                    "exceeded, the density is reported as zero, which biases " +
+                    "the likelihood estimate downwards where survival is " +
+                    "rare.  Larger values reduce this bias at the cost of " +
+                    "longer evaluations in poorly fitting regions of " +
+                    "parameter space.  A warning is logged the first time " +
+                    "the limit is reached.", 1000);
+
+    public Input<Integer> lookaheadEventsInput = new Input<>(
+            "lookaheadEvents",
+            "Number of upcoming observed events whose lineage counts are used " +
+                    "to guide particle proposals.  While a particle's " +
+                    "prevalence is below the largest of these counts, " +
+                    "infections are proposed more often and recoveries less " +
+                    "often, with particle weights corrected accordingly.  " +
+                    "Zero (default) disables guiding.", 0);
+
+    public Input<Double> lookaheadStrengthInput = new Input<>(
+            "lookaheadStrength",
+            "Log of the factor by which guided proposals scale infection " +
+                    "and recovery propensities.", 1.0);
+
+    public Input<Integer> rejuvenationMovesInput = new Input<>(
+            "rejuvenationMoves",
+            "Number of Metropolis-Hastings moves applied to each duplicated " +
+                    "particle following resampling.  Each move re-simulates " +
+                    "the particle's path since the previous resampling and " +
+                    "accepts it with probability given by the ratio of the " +
+                    "weights of the new and old paths.  Only available with " +
+                    "FULL trajectory recording held on the heap.", 0);
+
+    public Input<Boolean> useRQMCInput = new Input<>(
+            "useRQMC",
+            "Use randomised quasi-Monte Carlo (Gerber and Chopin, 2015): " +
+                    "each particle is paired with a point of a scrambled " +
+                    "Halton point set.  When resampling, particles are " +
+                    "ordered by prevalence and ancestors chosen using the " +
+                    "leading coordinates of the points.  The remaining " +
+                    "rqmcDimension coordinates supply the first uniform " +
+                    "variates used to propagate each particle to the next " +
+                    "observed event.  Cannot be used with REPLAY trajectory " +
+                    "recording or useAliveFilter.", false);
+
+    public Input<Integer> rqmcDimensionInput = new Input<>(
+            "rqmcDimension",
+            "Number of quasi-random variates supplied to each particle " +
+                    "per observed event when useRQMC is set.  At most " +
+                    (RQMCRandomSource.MAX_DIMENSION - 1) + ".", 4);
+
+    public Input<Boolean> raoBlackwelliseSamplingInput = new Input<>(
+            "raoBlackwelliseSampling",
+            "Integrate the choice between removal and non-removal at each " +
+                    "sequenced sample into the particle weight, drawing the " +
+                    "choice in proportion to its contribution.  Batches of " +
+                    "unsequenced samples are handled by drawing only the " +
+                    "number of removals, integrating over the order of " +
+                    "removals and non-removals exactly.",
+            false);
+
     public Input<Double> resampThreshInput = new Input<>(
             "resampThresh",
             "Resampling performed when the effective relative number of " +
@@ -87,24 +172,122 @@ public class SMCTreeDensity extends TreeDistribution {
             "incidenceData",
             "Incindence data (as a histogram).");
 
+    public Input<Integer> offHeapMemoryBudgetInput = new Input<>(
+            "offHeapMemoryBudget",
+            "If provided, particle states and trajectories are stored outside " +
+                    "of the JVM heap using at most this many megabytes. " +
+                    "(JVM option -XX:MaxDirectMemorySize may need to be raised.)");
+
+    public Input<Function> recordingGridInput = new Input<>(
+            "recordingGrid",
+            "Ages (times before the end of the observation period) at which " +
+                    "to record particle states.  If this or recordingGridSize " +
+                    "is provided, states are recorded only at these times " +
+                    "and at observed events.");
+
+    public Input<Integer> recordingGridSizeInput = new Input<>(
+            "recordingGridSize",
+            "Number of evenly spaced times between the origin and the end " +
+                    "of the observation period at which to record particle " +
+                    "states, in place of recordingGrid.");
+
+    public enum TrajectoryRecordingMode { FULL, OBSERVED_EVENTS, REPLAY }
+
+    public Input<TrajectoryRecordingMode> trajectoryRecordingModeInput = new Input<>(
+            "trajectoryRecordingMode",
+            "FULL records every particle state along every particle path. " +
+                    "OBSERVED_EVENTS keeps only snapshots of the particle " +
+                    "ensemble at each observed event, from which a trajectory " +
+                    "is drawn when one is requested.  REPLAY records only " +
+                    "particle ancestry and regenerates the requested " +
+                    "trajectory by re-simulating a single lineage.  (Default FULL.)",
+            TrajectoryRecordingMode.FULL, TrajectoryRecordingMode.values());
+
 
     protected EpidemicModel model;
     protected ObservedEventsList observedEventsList;
 
     int nParticles;
-    boolean useTauLeaping;
+    boolean useTauLeaping, useBinomialLeaping, useAliveFilter;
+    boolean aliveMaxTrialsWarned;
+    boolean raoBlackwelliseSampling;
     double epsilon, resampThresh, relStdThresh;
     int minLeapCount;
 
+    // Largest lineage count among the upcoming observed events considered
+    // by guided proposals, indexed by the next observed event.
+    int[] lookaheadLineages;
+    double lookaheadTilt;
+
+    // Particle states, paths and accumulated log weights at the start of
+    // the current resampling block, used by rejuvenation moves.
+    int rejuvenationMoves;
+    EpidemicState[] blockStartStates;
+    ParticlePath[] blockStartPaths;
+    double[] blockLogWeights;
+    int[] ancestorCounts;
+    EpidemicState rejuvenationScratchState;
+
     // Keep these around so we don't have to create these arrays/lists
     // for every density evaluation.
 
     double[] logParticleWeights, particleWeights;
     EpidemicState[] particleStates, particleStatesNew;
 
-    List<EpidemicState> recordedTrajectoryStates;
-    EpidemicTrajectory storedTrajectory;
-    List<List<EpidemicState>> particleTrajectories, particleTrajectoriesNew;
+    // Trajectories are immutable once recorded, so they can be shared
+    // between the most recent evaluation, the accepted state and the loggers.
+    EpidemicTrajectory recordedTrajectory, storedTrajectory;
+    ParticlePath[] particlePaths, particlePathsNew;
+
+    // Used in place of the above when particles are stored off-heap.
+    // The trajectory is only copied onto the heap when it is needed,
+    // which must happen before the ensemble is next reset.
+    OffHeapParticleEnsemble offHeapEnsemble;
+    EpidemicState offHeapScratchState;
+    int[] ancestorIndices;
+    boolean offHeapTrajectoryPending;
+    double offHeapTrajectoryOrigin;
+
+    // Ensemble snapshots used when recording only observed events.
+    TrajectoryRecordingMode trajectoryRecordingMode;
+    double[][] snapshotS, snapshotI, snapshotR, snapshotCI, snapshotTimes, snapshotLogWeights;
+    int[][] snapshotAncestors;
+    int nSnapshots;
+    boolean resampledSinceSnapshot, snapshotTrajectoryPending;
+
+    // Ancestry and random streams used when replaying trajectories.
+    // Variates not drawn from the replay or quasi-random streams come
+    // from baseRandom.
+    RandomSource random, baseRandom;
+    SeededRandomSource seededRandom;
+    RQMCRandomSource rqmcRandom;
+    long[] resamplingOrder;
+    double[] resamplingPoints;
+
+    // Scratch space for unsequenced sample batch probabilities.
+    double[] interleavingExpectations;
+
+    // Quasi-random point used to propagate each particle, and whether
+    // these were assigned by the most recent resampling.
+    int[] rqmcPointIndices;
+    boolean rqmcPointsAssigned;
+
+    int generation;
+    long replaySeed;
+    int[][] replayAncestors;
+    boolean[] replayResampled;
+    double[] replayFinalLogWeights;
+    boolean replayTrajectoryPending, replaying;
+    List<EpidemicState> replayedStates;
+
+    // Times at which states are recorded, if recording is restricted to a grid.
+    double[] recordingGridTimes;
+    EpidemicState gridState;
+
+    // Derived series of the recorded and stored trajectories, computed
+    // using the parameters under which each trajectory was generated.
+    DerivedTrajectorySeries recordedSeries, storedSeries;
+    boolean lastEvaluatedTrajectoryRequired;
 
 
     public SMCTreeDensity() {
@@ -126,62 +309,347 @@ public class SMCTreeDensity extends TreeDistribution {
         nParticles = nParticlesInput.get();
 
         useTauLeaping = useTauLeapingInput.get();
+        useBinomialLeaping = useBinomialLeapingInput.get();
+        raoBlackwelliseSampling = raoBlackwelliseSamplingInput.get();
         epsilon = epsilonInput.get();
         minLeapCount = minLeapCountInput.get();
         resampThresh = resampThreshInput.get();
         relStdThresh = relStdThreshInput.get();
 
+        trajectoryRecordingMode = trajectoryRecordingModeInput.get();
+
+        // The alive filter needs one extra particle slot, in which the
+        // survivor beyond the target ensemble size is propagated.
+        useAliveFilter = useAliveFilterInput.get();
+        if (useAliveFilter && trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY)
+            throw new IllegalArgumentException("useAliveFilter cannot be used " +
+                    "with REPLAY trajectory recording.");
+        if (useAliveFilter && offHeapMemoryBudgetInput.get() != null)
+            throw new IllegalArgumentException("useAliveFilter cannot be used " +
+                    "with offHeapMemoryBudget.");
+        if (aliveMaxTrialsInput.get() < 2)
+            throw new IllegalArgumentException("aliveMaxTrials must be at least 2.");
+
+        if (lookaheadEventsInput.get() < 0)
+            throw new IllegalArgumentException("lookaheadEvents must be non-negative.");
+        lookaheadTilt = Math.exp(lookaheadStrengthInput.get());
+
+        rejuvenationMoves = rejuvenationMovesInput.get();
+        if (rejuvenationMoves < 0)
+            throw new IllegalArgumentException("rejuvenationMoves must be non-negative.");
+        if (rejuvenationMoves > 0 && (trajectoryRecordingMode != TrajectoryRecordingMode.FULL
+                || offHeapMemoryBudgetInput.get() != null || useAliveFilter))
+            throw new IllegalArgumentException("rejuvenationMoves requires FULL " +
+                    "trajectory recording without offHeapMemoryBudget or useAliveFilter.");
+
+        if (useRQMCInput.get() && (trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY
+                || useAliveFilter))
+            throw new IllegalArgumentException("useRQMC cannot be used with " +
+                    "REPLAY trajectory recording or useAliveFilter.");
+
+        int nSlots = useAliveFilter ? nParticles + 1 : nParticles;
+
         particleWeights = new double[nParticles];
-        logParticleWeights = new double[nParticles];
-        particleStates = new EpidemicState[nParticles];
-        particleStatesNew = new EpidemicState[nParticles];
+        logParticleWeights = new double[nSlots];
+        ancestorIndices = new int[nSlots];
 
-        recordedTrajectoryStates = new ArrayList<>();
-        particleTrajectories = new ArrayList<>();
-        particleTrajectoriesNew = new ArrayList<>();
+        if (recordingGridInput.get() != null && recordingGridSizeInput.get() != null)
+            throw new IllegalArgumentException("At most one of recordingGrid " +
+                    "and recordingGridSize may be specified.");
 
-        for (int p=0; p<nParticles; p++) {
-            particleTrajectories.add(new ArrayList<>());
-            particleTrajectoriesNew.add(new ArrayList<>());
+        if (recordingGridSizeInput.get() != null && recordingGridSizeInput.get() < 2)
+            throw new IllegalArgumentException("recordingGridSize must be at least 2.");
+
+        gridState = new EpidemicState();
+
+        seededRandom = new SeededRandomSource();
+        if (baseRandom == null)
+            baseRandom = RandomSource.RANDOMIZER;
+
+        if (trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY) {
+            random = seededRandom;
+            replayFinalLogWeights = new double[nParticles];
+        } else if (useRQMCInput.get()) {
+            if (rqmcDimensionInput.get() < 1 || rqmcDimensionInput.get() >= RQMCRandomSource.MAX_DIMENSION)
+                throw new IllegalArgumentException("rqmcDimension must be between 1 and "
+                        + (RQMCRandomSource.MAX_DIMENSION - 1) + ".");
+
+            rqmcRandom = new RQMCRandomSource(nParticles, rqmcDimensionInput.get() + 1, baseRandom);
+            random = rqmcRandom;
+            rqmcPointIndices = new int[nParticles];
+        } else
+            random = baseRandom;
+
+        if (offHeapMemoryBudgetInput.get() != null) {
+            offHeapEnsemble = new OffHeapParticleEnsemble(nParticles,
+                    offHeapMemoryBudgetInput.get()*1024L*1024L);
+            offHeapScratchState = new EpidemicState();
+            return;
+        }
 
+        particleStates = new EpidemicState[nSlots];
+        particleStatesNew = new EpidemicState[nSlots];
+
+        particlePaths = new ParticlePath[nSlots];
+        particlePathsNew = new ParticlePath[nSlots];
+
+        for (int p=0; p<nSlots; p++) {
             particleStates[p] = new EpidemicState();
             particleStatesNew[p] = new EpidemicState();
         }
+
+        if (rejuvenationMoves > 0) {
+            blockStartStates = new EpidemicState[nParticles];
+            for (int p=0; p<nParticles; p++)
+                blockStartStates[p] = new EpidemicState();
+            blockStartPaths = new ParticlePath[nParticles];
+            blockLogWeights = new double[nParticles];
+            ancestorCounts = new int[nParticles];
+            rejuvenationScratchState = new EpidemicState();
+        }
+    }
+
+    /**
+     * Begin an incremental evaluation of the density, in which the
+     * particle filter is advanced through the observed events one at a
+     * time using advanceIncrementalLogP().  Model parameters may have been
+     * modified outside of any MCMC state since the previous evaluation.
+     * Used by nested samplers such as SMC2Sampler.
+     *
+     * @return number of observed events, or 0 if the density is zero
+     */
+    public int startIncrementalLogP() {
+        checkIncrementalEvaluation();
+
+        model.makeDirty();
+        observedEventsList.makeDirty();
+
+        if (!initialiseFilter())
+            return 0;
+
+        return observedEventsList.getEventList().size();
+    }
+
+    /**
+     * Advance an incremental evaluation through the next observed event.
+     *
+     * @return log of the current estimate of the density of the observed
+     * events processed so far
+     */
+    public double advanceIncrementalLogP() {
+        if (logP == Double.NEGATIVE_INFINITY)
+            return logP;
+
+        if (!advanceFilter(observedEventsList.getEventList().get(generation)))
+            return logP;
+
+        return getIncrementalLogP();
+    }
+
+    /**
+     * @return log of the current estimate of the density of the observed
+     * events processed so far by an incremental evaluation, including the
+     * weights accumulated since the last resampling
+     */
+    public double getIncrementalLogP() {
+        if (logP == Double.NEGATIVE_INFINITY)
+            return logP;
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(maxLogWeight, logParticleWeights[p]);
+
+        if (maxLogWeight == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        double sumOfScaledWeights = 0.0;
+        for (int p=0; p<nParticles; p++)
+            sumOfScaledWeights += Math.exp(logParticleWeights[p] - maxLogWeight);
+
+        return logP + Math.log(sumOfScaledWeights/nParticles) + maxLogWeight;
+    }
+
+    /**
+     * @return number of observed events processed so far by an
+     * incremental evaluation
+     */
+    public int getIncrementalEventCount() {
+        return generation;
+    }
+
+    /**
+     * Save the particle filter state of an incremental evaluation.  The
+     * saved state is never modified, so may be shared between callers.
+     *
+     * @return saved state
+     */
+    public FilterState saveFilterState() {
+        checkIncrementalEvaluation();
+
+        FilterState state = new FilterState();
+        state.particleStates = new EpidemicState[nParticles];
+        for (int p=0; p<nParticles; p++)
+            state.particleStates[p] = particleStates[p].copy();
+        state.particlePaths = Arrays.copyOf(particlePaths, nParticles);
+        state.logParticleWeights = Arrays.copyOf(logParticleWeights, nParticles);
+        state.logP = logP;
+        state.generation = generation;
+
+        return state;
+    }
+
+    /**
+     * Resume an incremental evaluation from a saved particle filter state.
+     * The state may have been saved by a different copy of this density.
+     * Rates and probabilities may have changed since the state was saved,
+     * in which case the filter continues under the new values.  Parameters
+     * fixing the timing of events (origin, rate shift times and rho
+     * sampling times) and the initial state must hold the values they had
+     * when the state was saved.
+     *
+     * @param state previously saved state
+     */
+    public void restoreFilterState(FilterState state) {
+        checkIncrementalEvaluation();
+
+        model.makeDirty();
+        observedEventsList.makeDirty();
+        updateRecordingGrid();
+        updateLookaheadLineages();
+
+        for (int p=0; p<nParticles; p++)
+            particleStates[p].assignFrom(state.particleStates[p]);
+        System.arraycopy(state.particlePaths, 0, particlePaths, 0, nParticles);
+        System.arraycopy(state.logParticleWeights, 0, logParticleWeights, 0, nParticles);
+        logP = state.logP;
+        generation = state.generation;
+        rqmcPointsAssigned = false;
+    }
+
+    /**
+     * Throw an exception if this density cannot be evaluated incrementally.
+     */
+    private void checkIncrementalEvaluation() {
+        if (offHeapEnsemble != null || useAliveFilter || rejuvenationMoves > 0
+                || trajectoryRecordingMode != TrajectoryRecordingMode.FULL)
+            throw new IllegalStateException("Incremental evaluation requires FULL " +
+                    "trajectory recording on the heap, without useAliveFilter " +
+                    "or rejuvenationMoves.");
     }
 
     public double calculateLogP() {
 
+        if (!initialiseFilter())
+            return logP;
+
+        for (ObservedEvent observedEvent : observedEventsList.getEventList()) {
+            if (!advanceFilter(observedEvent))
+                return logP;
+        }
+
+        // Choose arbitrary trajectory to log.
+        if (trajectoryRecordingMode == TrajectoryRecordingMode.OBSERVED_EVENTS)
+            snapshotTrajectoryPending = true;
+        else if (trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY)
+            replayTrajectoryPending = true;
+        else if (offHeapEnsemble != null) {
+            offHeapTrajectoryPending = true;
+            offHeapTrajectoryOrigin = observedEventsList.getOrigin();
+        } else
+            recordedTrajectory = new ParticlePathTrajectory(particlePaths[0],
+                    observedEventsList.getOrigin());
+
+        if (lastEvaluatedTrajectoryRequired) {
+            drawPendingTrajectory();
+            recordedSeries = new DerivedTrajectorySeries(model, recordedTrajectory.getStateList());
+        }
+
+        return logP;
+    }
+
+    /**
+     * Reset the particle ensemble and the density estimate ready for
+     * propagation through the first observed event.
+     *
+     * @return false if the density is already known to be zero
+     */
+    private boolean initialiseFilter() {
+
         logP = 0.0;
 
-        recordedTrajectoryStates.clear();
+        recordedTrajectory = new EpidemicTrajectory(null, new ArrayList<>(), observedEventsList.getOrigin());
+        recordedSeries = null;
+        snapshotTrajectoryPending = false;
+        replayTrajectoryPending = false;
+        offHeapTrajectoryPending = false;
+        rqmcPointsAssigned = false;
+        nSnapshots = 0;
+        resampledSinceSnapshot = false;
+
+        updateRecordingGrid();
+        updateLookaheadLineages();
 
         // Early exit if first tree event occurs before origin.
         if (observedEventsList.getEventList().get(0).time < 0) {
             logP = Double.NEGATIVE_INFINITY;
-            return logP;
+            return false;
         }
 
         // Initialize particles and trajectory storage
+        if (offHeapEnsemble != null)
+            offHeapEnsemble.reset(model.getInitialState());
+
+        ParticlePath initialPath = new ParticlePath(model.getInitialState(), null);
         for (int p = 0; p < nParticles; p++) {
-            particleStates[p].assignFrom(model.getInitialState());
             logParticleWeights[p] = 0.0;
+            particleWeights[p] = 1.0/nParticles;
 
-            particleTrajectoriesNew.get(p).clear();
-            particleTrajectories.get(p).clear();
-            particleTrajectories.get(p).add(model.getInitialState());
-        }
+            if (offHeapEnsemble != null)
+                continue;
 
-        for (ObservedEvent observedEvent : observedEventsList.getEventList()) {
-            if (!propagateEnsemble(observedEvent)) {
-                logP = Double.NEGATIVE_INFINITY;
-                return logP;
+            particleStates[p].assignFrom(model.getInitialState());
+            particlePaths[p] = initialPath;
+
+            if (rejuvenationMoves > 0) {
+                blockStartStates[p].assignFrom(particleStates[p]);
+                blockStartPaths[p] = initialPath;
             }
         }
 
-        // Choose arbitrary trajectory to log.
-        recordedTrajectoryStates.addAll(particleTrajectories.get(0));
+        if (trajectoryRecordingMode == TrajectoryRecordingMode.OBSERVED_EVENTS)
+            allocateSnapshots(observedEventsList.getEventList().size());
 
-        return logP;
+        if (trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY)
+            replaySeed = baseRandom.nextLong();
+
+        if (trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY)
+            allocateReplayAncestry(observedEventsList.getEventList().size());
+
+        generation = 0;
+
+        return true;
+    }
+
+    /**
+     * Propagate the particle ensemble through the next observed event.
+     *
+     * @param observedEvent next observed event
+     * @return false if the ensemble has died out, in which case logP is
+     * set to negative infinity
+     */
+    private boolean advanceFilter(ObservedEvent observedEvent) {
+        boolean success = useAliveFilter
+                ? propagateAliveEnsemble(observedEvent)
+                : propagateEnsemble(observedEvent);
+
+        if (!success) {
+            logP = Double.NEGATIVE_INFINITY;
+            return false;
+        }
+
+        generation += 1;
+
+        return true;
     }
 
     /**
@@ -193,17 +661,42 @@ public class SMCTreeDensity extends TreeDistribution {
      */
     private boolean propagateEnsemble(ObservedEvent nextObservedEvent) {
 
+            // Without a preceding resampling, points are paired with
+            // particles by ranking both, particles by prevalence and points
+            // by their leading coordinate.
+            if (rqmcRandom != null && !rqmcPointsAssigned) {
+                rqmcRandom.randomize();
+                sortParticlesByPrevalence();
+                for (int k = 0; k < nParticles; k++)
+                    rqmcPointIndices[(int)(resamplingOrder[k] & 0xffffffffL)] = k;
+            }
+            rqmcPointsAssigned = false;
+
             // Update particles and record max log weight
             double maxLogWeight = Double.NEGATIVE_INFINITY;
             for (int p = 0; p < nParticles; p++) {
 
-                if (logParticleWeights[p] > Double.NEGATIVE_INFINITY)
-                    logParticleWeights[p] += updateParticle(particleStates[p], particleTrajectories.get(p),
-                            nextObservedEvent);
+                if (random == seededRandom)
+                    seededRandom.setSeed(replaySeed, generation, p);
+                else if (rqmcRandom != null)
+                    rqmcRandom.setPoint(rqmcPointIndices[p]);
+
+                if (logParticleWeights[p] > Double.NEGATIVE_INFINITY) {
+                    if (offHeapEnsemble != null) {
+                        offHeapEnsemble.loadState(p, offHeapScratchState);
+                        logParticleWeights[p] += updateParticle(offHeapScratchState, p, nextObservedEvent);
+                        offHeapEnsemble.storeState(p, offHeapScratchState);
+                    } else {
+                        logParticleWeights[p] += updateParticle(particleStates[p], p, nextObservedEvent);
+                    }
+                }
 
                 maxLogWeight = Math.max(logParticleWeights[p], maxLogWeight);
             }
 
+            if (rqmcRandom != null)
+                rqmcRandom.releasePoint();
+
 
             // Compute mean of weights scaled relative to max log weight
             double sumOfScaledWeights = 0, sumOfSquaredScaledWeights = 0;
@@ -217,6 +710,11 @@ public class SMCTreeDensity extends TreeDistribution {
                 return false;
             }
 
+            if (trajectoryRecordingMode == TrajectoryRecordingMode.OBSERVED_EVENTS)
+                recordSnapshot();
+            else if (trajectoryRecordingMode == TrajectoryRecordingMode.REPLAY)
+                recordReplayAncestry(nextObservedEvent);
+
             double Neff = sumOfScaledWeights*sumOfScaledWeights/sumOfSquaredScaledWeights;
 
             if (Neff < resampThresh*nParticles || nextObservedEvent.type == ObservedEvent.Type.OBSERVATION_END) {
@@ -227,28 +725,192 @@ public class SMCTreeDensity extends TreeDistribution {
                 for (int i = 0; i < nParticles; i++)
                     particleWeights[i] = particleWeights[i] / sumOfScaledWeights;
 
+                if (rejuvenationMoves > 0)
+                    System.arraycopy(logParticleWeights, 0, blockLogWeights, 0, nParticles);
+
                 resampleParticles();
+
+                if (rejuvenationMoves > 0)
+                    rejuvenateParticles();
             }
 
             return true;
     }
 
+    /**
+     * Propagate particle ensemble up to chosen observed event using the
+     * alive particle filter of Del Moral et al. (Bernoulli, 2015).
+     * Ancestors are drawn from the weighted ensemble and propagated until
+     * nParticles+1 of them have non-zero weight.  The first nParticles
+     * survivors form the new ensemble, and if T propagations were needed
+     * the likelihood increment is estimated by the sum of their weights
+     * divided by T-1.
+     *
+     * @param nextObservedEvent Next observed event.
+     *
+     * @return true if propagation succeeds, false if too few particles survive
+     */
+    private boolean propagateAliveEnsemble(ObservedEvent nextObservedEvent) {
+
+        // Ancestors are drawn from the previous ensemble, which is moved
+        // to the spare arrays while the new ensemble is assembled.
+        EpidemicState[] parentStates = particleStates;
+        particleStates = particleStatesNew;
+        particleStatesNew = parentStates;
+
+        ParticlePath[] parentPaths = particlePaths;
+        particlePaths = particlePathsNew;
+        particlePathsNew = parentPaths;
+
+        ReplacementSampler parentSampler = new ReplacementSampler(particleWeights);
+
+        long maxTrials = (long)aliveMaxTrialsInput.get()*nParticles;
+        long trials = 0;
+        int nAlive = 0;
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+
+        while (nAlive <= nParticles) {
+            if (trials == maxTrials) {
+                if (!aliveMaxTrialsWarned) {
+                    aliveMaxTrialsWarned = true;
+                    Log.warning.println("Warning: alive particle filter " +
+                            "reached aliveMaxTrials; density set to zero.  " +
+                            "Consider increasing aliveMaxTrials if this " +
+                            "happens often.");
+                }
+                return false;
+            }
+
+            int parent = parentSampler.next(baseRandom);
+            particleStates[nAlive].assignFrom(parentStates[parent]);
+            particlePaths[nAlive] = parentPaths[parent];
+
+            double logWeight = updateParticle(particleStates[nAlive], nAlive, nextObservedEvent);
+            trials += 1;
+
+            if (logWeight > Double.NEGATIVE_INFINITY) {
+                logParticleWeights[nAlive] = logWeight;
+                ancestorIndices[nAlive] = parent;
+
+                if (nAlive < nParticles)
+                    maxLogWeight = Math.max(maxLogWeight, logWeight);
+
+                nAlive += 1;
+            }
+        }
+
+        // The final survivor is only used to stop the search.
+
+        double sumOfScaledWeights = 0.0;
+        for (int p=0; p<nParticles; p++) {
+            particleWeights[p] = Math.exp(logParticleWeights[p] - maxLogWeight);
+            sumOfScaledWeights += particleWeights[p];
+        }
+
+        logP += Math.log(sumOfScaledWeights/(trials - 1)) + maxLogWeight;
+
+        for (int p=0; p<nParticles; p++)
+            particleWeights[p] /= sumOfScaledWeights;
+
+        resampledSinceSnapshot = true;
+        if (trajectoryRecordingMode == TrajectoryRecordingMode.OBSERVED_EVENTS)
+            recordSnapshot();
+
+        if (nextObservedEvent.type == ObservedEvent.Type.OBSERVATION_END)
+            resampleParticles();
+
+        return true;
+    }
+
+    /**
+     * Fill resamplingOrder with the particle indices ordered by prevalence,
+     * each packed into the low bits of a sort key.
+     */
+    private void sortParticlesByPrevalence() {
+        if (resamplingOrder == null)
+            resamplingOrder = new long[nParticles];
+
+        for (int p = 0; p < nParticles; p++) {
+            double I;
+            if (offHeapEnsemble != null) {
+                offHeapEnsemble.loadState(p, offHeapScratchState);
+                I = offHeapScratchState.I;
+            } else
+                I = particleStates[p].I;
+
+            resamplingOrder[p] = (Math.max(0L, Math.round(I)) << 32) | p;
+        }
+        Arrays.sort(resamplingOrder);
+    }
+
+    /**
+     * Choose ancestors by inverting the cumulative weight distribution of
+     * the particles ordered by prevalence.  Given increasing uniforms,
+     * ancestors are then assigned in order of increasing prevalence.
+     *
+     * @param u increasing uniform variates, one per ancestor
+     */
+    private void drawSortedAncestors(double[] u) {
+        sortParticlesByPrevalence();
+
+        double cumulativeWeight = 0.0;
+        int p = 0;
+        for (int k = 0; k < nParticles; k++) {
+            int idx = (int)(resamplingOrder[k] & 0xffffffffL);
+            cumulativeWeight += particleWeights[idx];
+
+            while (p < nParticles && u[p] < cumulativeWeight)
+                ancestorIndices[p++] = idx;
+        }
+
+        // Guard against rounding error in the cumulative weight.
+        while (p < nParticles) {
+            ancestorIndices[p] = ancestorIndices[p-1];
+            p += 1;
+        }
+    }
+
     /**
      * Resample particle states from weighted particle distribution.
      */
     private void resampleParticles() {
 
-        // Sample particle with replacement
-        double[] tmpWeights = new double[nParticles];
-        System.arraycopy(particleWeights, 0, tmpWeights, 0, nParticles);
-        ReplacementSampler replacementSampler = new ReplacementSampler(tmpWeights);
-        for (int p = 0; p < nParticles; p++) {
-            int srcIdx = replacementSampler.next();
-            particleStatesNew[p].assignFrom(particleStates[srcIdx]);
+        if (rqmcRandom != null) {
+            // Quasi-random resampling (Gerber and Chopin, 2015): the point
+            // with the kth smallest leading coordinate chooses the ancestor
+            // of particle k and then supplies its propagation variates.
+            if (resamplingPoints == null)
+                resamplingPoints = new double[nParticles];
+
+            rqmcRandom.randomize();
+            for (int p = 0; p < nParticles; p++) {
+                resamplingPoints[p] = rqmcRandom.getLeadingCoordinate(p);
+                rqmcPointIndices[p] = p;
+            }
+            drawSortedAncestors(resamplingPoints);
+            rqmcPointsAssigned = true;
+        } else {
+            // Sample particle with replacement
+            double[] tmpWeights = new double[nParticles];
+            System.arraycopy(particleWeights, 0, tmpWeights, 0, nParticles);
+            ReplacementSampler replacementSampler = new ReplacementSampler(tmpWeights);
+            for (int p = 0; p < nParticles; p++)
+                ancestorIndices[p] = replacementSampler.next(baseRandom);
+        }
+
+        for (int p = 0; p < nParticles; p++)
             logParticleWeights[p] = 0;
+        resampledSinceSnapshot = true;
 
-            particleTrajectoriesNew.get(p).clear();
-            particleTrajectoriesNew.get(p).addAll(particleTrajectories.get(srcIdx));
+        if (offHeapEnsemble != null) {
+            offHeapEnsemble.resample(ancestorIndices);
+            return;
+        }
+
+        for (int p = 0; p < nParticles; p++) {
+            int srcIdx = ancestorIndices[p];
+            particleStatesNew[p].assignFrom(particleStates[srcIdx]);
+            particlePathsNew[p] = particlePaths[srcIdx];
         }
 
         // Switch particleStates and particleStatesNew
@@ -256,10 +918,68 @@ public class SMCTreeDensity extends TreeDistribution {
         particleStates = particleStatesNew;
         particleStatesNew = tempStates;
 
-        // Switch particleTrajectories and particleTrajectoriesNew
-        List<List<EpidemicState>> tmpTrajs = particleTrajectories;
-        particleTrajectories = particleTrajectoriesNew;
-        particleTrajectoriesNew = tmpTrajs;
+        // Switch particlePaths and particlePathsNew
+        ParticlePath[] tmpPaths = particlePaths;
+        particlePaths = particlePathsNew;
+        particlePathsNew = tmpPaths;
+    }
+
+    /**
+     * Apply resample-move rejuvenation (Gilks and Berzuini, 2001) to the
+     * freshly resampled ensemble.  Each particle whose ancestor was drawn
+     * more than once has the portion of its path since the previous
+     * resampling replaced by a fresh simulation from the same starting
+     * state.  As the proposal is the unconditioned particle dynamics, the
+     * Metropolis-Hastings acceptance probability is the ratio of the
+     * accumulated weights of the new and old path portions, leaving the
+     * target distribution of the ensemble unchanged.
+     *
+     * Afterwards, the current particle states begin the next block.
+     */
+    private void rejuvenateParticles() {
+        List<ObservedEvent> events = observedEventsList.getEventList();
+
+        Arrays.fill(ancestorCounts, 0);
+        for (int p=0; p<nParticles; p++)
+            ancestorCounts[ancestorIndices[p]] += 1;
+
+        for (int p=0; p<nParticles; p++) {
+            int ancestor = ancestorIndices[p];
+            if (ancestorCounts[ancestor] < 2)
+                continue;
+
+            EpidemicState startState = blockStartStates[ancestor];
+            int lastEventIdx = particleStates[p].observedEventIdx - 1;
+            double logWeight = blockLogWeights[ancestor];
+
+            for (int m=0; m<rejuvenationMoves; m++) {
+                rejuvenationScratchState.assignFrom(particleStates[p]);
+                ParticlePath oldPath = particlePaths[p];
+
+                particleStates[p].assignFrom(startState);
+                particlePaths[p] = blockStartPaths[ancestor];
+
+                double newLogWeight = 0.0;
+                for (int i=startState.observedEventIdx; i<=lastEventIdx; i++) {
+                    newLogWeight += updateParticle(particleStates[p], p, events.get(i));
+                    if (newLogWeight == Double.NEGATIVE_INFINITY)
+                        break;
+                }
+
+                if (newLogWeight > Double.NEGATIVE_INFINITY
+                        && Math.log(random.nextDouble()) < newLogWeight - logWeight) {
+                    logWeight = newLogWeight;
+                } else {
+                    particleStates[p].assignFrom(rejuvenationScratchState);
+                    particlePaths[p] = oldPath;
+                }
+            }
+        }
+
+        for (int p=0; p<nParticles; p++) {
+            blockStartStates[p].assignFrom(particleStates[p]);
+            blockStartPaths[p] = particlePaths[p];
+        }
     }
 
     /**
@@ -267,13 +987,13 @@ public class SMCTreeDensity extends TreeDistribution {
      * event (if there is one) or the last incidence report (if there isn't).
      *
      * @param particleState State of particle
-     * @param particleTrajectory if non-null, add particle states to this trajectory
+     * @param particleIdx index of particle whose trajectory the states are added to
      * @param nextObservedEvent next observed event - termination of particle sim
      *
      * @return log conditional prob of tree interval under trajectory
      */
     private double updateParticle(EpidemicState particleState,
-                                  List<EpidemicState> particleTrajectory,
+                                  int particleIdx,
                                   ObservedEvent nextObservedEvent) {
         double conditionalLogP = 0;
         ModelEvent nextModelEvent;
@@ -282,6 +1002,8 @@ public class SMCTreeDensity extends TreeDistribution {
 
         double maxLeapSize = model.getOrigin()/minLeapCount;
 
+        int gridIdx = getNextGridIndex(particleState.time);
+
         while (true) {
             nextModelEvent = model.getNextModelEvent(particleState);
             nextModelEventTime = model.getNextModelEventTime(particleState);
@@ -307,6 +1029,22 @@ public class SMCTreeDensity extends TreeDistribution {
 
             double allowedEventProp = unobservedInfectProp + allowedRecovProp;
 
+            // Guided proposals scale the allowed propensities while the
+            // prevalence is short of upcoming lineage counts.
+            double infectTilt = 1.0, recovTilt = 1.0;
+            if (lookaheadLineages != null) {
+                double deficit = lookaheadLineages[particleState.observedEventIdx] - particleState.I;
+                if (deficit >= 0.0) {
+                    recovTilt = 1.0/lookaheadTilt;
+                    if (deficit > 0.0)
+                        infectTilt = lookaheadTilt;
+                }
+            }
+
+            double proposalInfectProp = infectTilt*unobservedInfectProp;
+            double proposalRecovProp = recovTilt*allowedRecovProp;
+            double proposalEventProp = proposalInfectProp + proposalRecovProp;
+
             // Do we leap?
 
             boolean isLeap = useTauLeaping;
@@ -330,8 +1068,8 @@ public class SMCTreeDensity extends TreeDistribution {
 
                 // Determine size of time increment
                 double dt;
-                if (allowedEventProp > 0.0)
-                    dt = Randomizer.nextExponential(allowedEventProp);
+                if (proposalEventProp > 0.0)
+                    dt = random.nextExponential(proposalEventProp);
                 else
                     dt = Double.POSITIVE_INFINITY;
 
@@ -341,6 +1079,10 @@ public class SMCTreeDensity extends TreeDistribution {
                         + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]
                         + observedInfectProp + forbiddenRecovProp);
 
+                // Correct for guided waiting time
+                if (proposalEventProp != allowedEventProp)
+                    conditionalLogP += -trueDt * (allowedEventProp - proposalEventProp);
+
                 // Increment time
                 particleState.time += dt;
 
@@ -360,12 +1102,17 @@ public class SMCTreeDensity extends TreeDistribution {
                 if (particleState.time > nextObservedEventTime)
                         break;
 
+                gridIdx = recordGridStates(particleIdx, particleState, gridIdx, particleState.time);
+
                 EpidemicEvent event = new EpidemicEvent();
                 event.time = particleState.time;
-                if (allowedEventProp * Randomizer.nextDouble() < unobservedInfectProp)
+                if (proposalEventProp * random.nextDouble() < proposalInfectProp) {
                     event.type = EpidemicEvent.INFECTION;
-                else
+                    conditionalLogP -= Math.log(infectTilt);
+                } else {
                     event.type = EpidemicEvent.RECOVERY;
+                    conditionalLogP -= Math.log(recovTilt);
+                }
 
                 model.incrementState(particleState, event);
 
@@ -394,17 +1141,57 @@ public class SMCTreeDensity extends TreeDistribution {
 
                 EpidemicEvent infectEvent = new EpidemicEvent();
                 infectEvent.type = EpidemicEvent.INFECTION;
-                if (unobservedInfectProp<propThresh)
-                    infectEvent.multiplicity = (int)Randomizer.nextPoisson(trueDt*unobservedInfectProp);
-                else
-                    infectEvent.multiplicity = (int)Math.round(trueDt*unobservedInfectProp);
 
                 EpidemicEvent recovEvent = new EpidemicEvent();
                 recovEvent.type = EpidemicEvent.RECOVERY;
-                if (allowedEventProp < propThresh)
-                    recovEvent.multiplicity = (int)Randomizer.nextPoisson(trueDt*allowedRecovProp);
-                else
-                    recovEvent.multiplicity = (int)Math.round(trueDt*allowedEventProp);
+
+                if (useBinomialLeaping) {
+                    // Bound infections by the susceptible pool (where the model
+                    // has one) and recoveries by the infecteds not ancestral to
+                    // the tree, using the propensities at the start of the leap
+                    // as constant per-individual hazards.
+                    if (model.infectionDepletesSusceptibles()) {
+                        if (unobservedInfectProp < propThresh) {
+                            infectEvent.multiplicity = nextBoundedLeapCount(
+                                    particleState.S, proposalInfectProp, trueDt, false);
+                            conditionalLogP += getBinomialLeapTiltLogWeight(particleState.S,
+                                    unobservedInfectProp, infectTilt, trueDt, infectEvent.multiplicity);
+                        } else
+                            infectEvent.multiplicity = nextBoundedLeapCount(
+                                    particleState.S, unobservedInfectProp, trueDt, true);
+                    } else if (unobservedInfectProp < propThresh) {
+                        infectEvent.multiplicity = (int)random.nextPoisson(trueDt*proposalInfectProp);
+                        conditionalLogP += getPoissonLeapTiltLogWeight(
+                                unobservedInfectProp, infectTilt, trueDt, infectEvent.multiplicity);
+                    } else
+                        infectEvent.multiplicity = (int)Math.round(trueDt*unobservedInfectProp);
+
+                    if (allowedRecovProp < propThresh) {
+                        recovEvent.multiplicity = nextBoundedLeapCount(
+                                particleState.I - lineages, proposalRecovProp, trueDt, false);
+                        conditionalLogP += getBinomialLeapTiltLogWeight(particleState.I - lineages,
+                                allowedRecovProp, recovTilt, trueDt, recovEvent.multiplicity);
+                    } else
+                        recovEvent.multiplicity = nextBoundedLeapCount(
+                                particleState.I - lineages, allowedRecovProp, trueDt, true);
+
+                } else {
+                    if (unobservedInfectProp<propThresh) {
+                        infectEvent.multiplicity = (int)random.nextPoisson(trueDt*proposalInfectProp);
+                        conditionalLogP += getPoissonLeapTiltLogWeight(
+                                unobservedInfectProp, infectTilt, trueDt, infectEvent.multiplicity);
+                    } else
+                        infectEvent.multiplicity = (int)Math.round(trueDt*unobservedInfectProp);
+
+                    if (allowedEventProp < propThresh) {
+                        recovEvent.multiplicity = (int)random.nextPoisson(trueDt*proposalRecovProp);
+                        conditionalLogP += getPoissonLeapTiltLogWeight(
+                                allowedRecovProp, recovTilt, trueDt, recovEvent.multiplicity);
+                    } else
+                        recovEvent.multiplicity = (int)Math.round(trueDt*allowedEventProp);
+                }
+
+                gridIdx = recordGridStates(particleIdx, particleState, gridIdx, particleState.time + trueDt);
 
                 model.incrementState(particleState, infectEvent);
                 model.incrementState(particleState, recovEvent);
@@ -430,10 +1217,12 @@ public class SMCTreeDensity extends TreeDistribution {
                 particleState.time += tau;
             }
 
-            if (particleTrajectory != null)
-                particleTrajectory.add(particleState.copy());
+            if (recordingGridTimes == null)
+                recordParticleState(particleIdx, particleState);
         }
 
+        recordGridStates(particleIdx, particleState, gridIdx, nextObservedEventTime);
+
         // Include probability of tree event and increment state if necessary
         if (nextObservedEvent.type != ObservedEvent.Type.OBSERVATION_END) {
             particleState.time = nextObservedEvent.time;
@@ -443,8 +1232,7 @@ public class SMCTreeDensity extends TreeDistribution {
         } else
             particleState.time = model.getOrigin();
 
-        if (particleTrajectory != null)
-            particleTrajectory.add(particleState.copy());
+        recordParticleState(particleIdx, particleState);
 
         if (!particleState.isValid())
             return Double.NEGATIVE_INFINITY; // Can occur due to susceptible pool depletion
@@ -454,9 +1242,373 @@ public class SMCTreeDensity extends TreeDistribution {
         }
     }
 
-    private double getObservedEventProbability(EpidemicState particleState,
-                                               ObservedEvent nextObservedEvent, double nextObservedEventTime,
-                                               ModelEvent nextModelEvent, double nextModelEventTime) {
+    /**
+     * Draw the number of times a reaction fires during a leap when it
+     * removes individuals from a pool of the given size, treating each
+     * individual independently.  The result never exceeds the pool size.
+     *
+     * @param poolSize number of individuals available to the reaction
+     * @param propensity reaction propensity at start of leap
+     * @param dt leap size
+     * @param deterministic if true, use the expected count
+     * @return number of reactions
+     */
+    private int nextBoundedLeapCount(double poolSize, double propensity, double dt,
+                                     boolean deterministic) {
+        long n = Math.round(poolSize);
+        if (n <= 0 || propensity <= 0.0)
+            return 0;
+
+        double p = -Math.expm1(-dt*propensity/n);
+
+        if (deterministic)
+            return (int)Math.round(n*p);
+        else
+            return (int)random.nextBinomial(n, p);
+    }
+
+    /**
+     * Log ratio of the probabilities of a Poisson leap count under the
+     * unguided and guided propensities.
+     *
+     * @param propensity unguided propensity
+     * @param tilt factor applied to propensity by guided proposal
+     * @param dt leap size
+     * @param count number of reactions drawn
+     * @return log importance weight
+     */
+    private static double getPoissonLeapTiltLogWeight(double propensity, double tilt,
+                                                      double dt, int count) {
+        if (tilt == 1.0 || propensity <= 0.0)
+            return 0.0;
+
+        return -count*Math.log(tilt) - dt*propensity*(1.0 - tilt);
+    }
+
+    /**
+     * Log ratio of the probabilities of a bounded binomial leap count (see
+     * nextBoundedLeapCount) under the unguided and guided propensities.
+     *
+     * @param poolSize number of individuals available to the reaction
+     * @param propensity unguided propensity
+     * @param tilt factor applied to propensity by guided proposal
+     * @param dt leap size
+     * @param count number of reactions drawn
+     * @return log importance weight
+     */
+    private static double getBinomialLeapTiltLogWeight(double poolSize, double propensity,
+                                                       double tilt, double dt, int count) {
+        long n = Math.round(poolSize);
+        if (tilt == 1.0 || n <= 0 || propensity <= 0.0)
+            return 0.0;
+
+        double rate = dt*propensity/n;
+        double logP = Math.log(-Math.expm1(-rate));
+        double logPGuided = Math.log(-Math.expm1(-tilt*rate));
+
+        return count*(logP - logPGuided) - (n - count)*rate*(1.0 - tilt);
+    }
+
+    /**
+     * Assemble the largest lineage counts among the upcoming observed
+     * events used to guide particle proposals.
+     */
+    private void updateLookaheadLineages() {
+        int K = lookaheadEventsInput.get();
+        if (K == 0) {
+            lookaheadLineages = null;
+            return;
+        }
+
+        List<ObservedEvent> events = observedEventsList.getEventList();
+        int n = events.size();
+        if (lookaheadLineages == null || lookaheadLineages.length != n)
+            lookaheadLineages = new int[n];
+
+        for (int i=0; i<n; i++) {
+            int maxLineages = 0;
+            for (int k=i; k<Math.min(n, i+K); k++)
+                maxLineages = Math.max(maxLineages, events.get(k).lineages);
+
+            lookaheadLineages[i] = maxLineages;
+        }
+    }
+
+    /**
+     * Assemble the (forward) times at which particle states are to be
+     * recorded, if recording is restricted to a grid.
+     */
+    private void updateRecordingGrid() {
+        double origin = model.getOrigin();
+
+        if (recordingGridSizeInput.get() != null) {
+            int n = recordingGridSizeInput.get();
+            if (recordingGridTimes == null || recordingGridTimes.length != n)
+                recordingGridTimes = new double[n];
+
+            for (int i=0; i<n; i++)
+                recordingGridTimes[i] = origin*i/(n-1);
+
+        } else if (recordingGridInput.get() != null) {
+            Function ages = recordingGridInput.get();
+            recordingGridTimes = new double[ages.getDimension()];
+            for (int i=0; i<ages.getDimension(); i++)
+                recordingGridTimes[i] = origin - ages.getArrayValue(i);
+
+            Arrays.sort(recordingGridTimes);
+        }
+    }
+
+    /**
+     * @param time time
+     * @return index of first recording grid time strictly after the given time
+     */
+    private int getNextGridIndex(double time) {
+        if (recordingGridTimes == null)
+            return 0;
+
+        int idx = Arrays.binarySearch(recordingGridTimes, time);
+        if (idx < 0)
+            return -(idx+1);
+
+        while (idx < recordingGridTimes.length && recordingGridTimes[idx] <= time)
+            idx += 1;
+
+        return idx;
+    }
+
+    /**
+     * Record the current particle state at each grid time preceding the
+     * given time, starting with the grid time having the given index.
+     * Must be called before the particle state is changed.
+     *
+     * @param particleIdx index of particle
+     * @param particleState current state of particle
+     * @param gridIdx index of next grid time to record
+     * @param untilTime time at which particle state next changes
+     * @return index of next grid time yet to be recorded
+     */
+    private int recordGridStates(int particleIdx, EpidemicState particleState,
+                                 int gridIdx, double untilTime) {
+        if (recordingGridTimes == null)
+            return gridIdx;
+
+        while (gridIdx < recordingGridTimes.length && recordingGridTimes[gridIdx] < untilTime) {
+            gridState.assignFrom(particleState);
+            gridState.time = recordingGridTimes[gridIdx];
+            recordParticleState(particleIdx, gridState);
+            gridIdx += 1;
+        }
+
+        return gridIdx;
+    }
+
+    /**
+     * Add copy of particle state to the trajectory of the given particle.
+     *
+     * @param particleIdx index of particle
+     * @param particleState state to record
+     */
+    private void recordParticleState(int particleIdx, EpidemicState particleState) {
+        if (replaying) {
+            replayedStates.add(particleState.copy());
+            return;
+        }
+
+        if (trajectoryRecordingMode != TrajectoryRecordingMode.FULL)
+            return;
+
+        if (offHeapEnsemble != null)
+            offHeapEnsemble.recordState(particleIdx, particleState);
+        else
+            particlePaths[particleIdx] = new ParticlePath(particleState.copy(), particlePaths[particleIdx]);
+    }
+
+    /**
+     * Ensure storage is available for the requested number of ensemble snapshots.
+     *
+     * @param nEvents number of snapshots required
+     */
+    private void allocateSnapshots(int nEvents) {
+        if (snapshotS != null && snapshotS.length >= nEvents)
+            return;
+
+        snapshotS = new double[nEvents][nParticles];
+        snapshotI = new double[nEvents][nParticles];
+        snapshotR = new double[nEvents][nParticles];
+        snapshotCI = new double[nEvents][nParticles];
+        snapshotTimes = new double[nEvents][nParticles];
+        snapshotLogWeights = new double[nEvents][nParticles];
+        snapshotAncestors = new int[nEvents][nParticles];
+    }
+
+    /**
+     * Record states and weights of the particle ensemble following its
+     * propagation to an observed event, along with the index of the particle
+     * in the previous snapshot from which each particle descends.
+     */
+    private void recordSnapshot() {
+        int k = nSnapshots;
+
+        for (int p=0; p<nParticles; p++) {
+            EpidemicState state;
+            if (offHeapEnsemble != null) {
+                offHeapEnsemble.loadState(p, offHeapScratchState);
+                state = offHeapScratchState;
+            } else
+                state = particleStates[p];
+
+            snapshotS[k][p] = state.S;
+            snapshotI[k][p] = state.I;
+            snapshotR[k][p] = state.R;
+            snapshotCI[k][p] = state.cumulativeInfections;
+            snapshotTimes[k][p] = state.time;
+            snapshotLogWeights[k][p] = logParticleWeights[p];
+            snapshotAncestors[k][p] = resampledSinceSnapshot ? ancestorIndices[p] : p;
+        }
+
+        resampledSinceSnapshot = false;
+        nSnapshots += 1;
+    }
+
+    /**
+     * Draw a trajectory from the ensemble snapshots recorded during the
+     * most recent density evaluation.  The final particle is chosen according
+     * to its weight and its ancestry is then traced back through the
+     * earlier snapshots.
+     */
+    private void drawSnapshotTrajectory() {
+        snapshotTrajectoryPending = false;
+        List<EpidemicState> states = new ArrayList<>();
+
+        int K = nSnapshots-1;
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(maxLogWeight, snapshotLogWeights[K][p]);
+
+        double[] weights = new double[nParticles];
+        for (int p=0; p<nParticles; p++)
+            weights[p] = Math.exp(snapshotLogWeights[K][p] - maxLogWeight);
+
+        int idx = baseRandom.randomChoicePDF(weights);
+        for (int k=K; k>=0; k--) {
+            EpidemicState state = new EpidemicState(
+                    snapshotS[k][idx], snapshotI[k][idx], snapshotR[k][idx],
+                    snapshotCI[k][idx]);
+            state.time = snapshotTimes[k][idx];
+            state.observedEventIdx = k+1;
+            states.add(state);
+
+            idx = snapshotAncestors[k][idx];
+        }
+        states.add(model.getInitialState());
+
+        Collections.reverse(states);
+        recordedTrajectory = new EpidemicTrajectory(null, states, observedEventsList.getOrigin());
+    }
+
+    /**
+     * Ensure storage is available for the ancestry of the requested
+     * number of particle generations.
+     *
+     * @param nEvents number of generations required
+     */
+    private void allocateReplayAncestry(int nEvents) {
+        if (replayAncestors != null && replayAncestors.length >= nEvents)
+            return;
+
+        replayAncestors = new int[nEvents][];
+        replayResampled = new boolean[nEvents];
+    }
+
+    /**
+     * Record the ancestry of the ensemble following its propagation to an
+     * observed event.  Ancestor indices are only stored for generations
+     * preceded by resampling.  The weights of the final generation are also
+     * kept, for selecting which lineage to replay.
+     *
+     * @param observedEvent observed event just reached
+     */
+    private void recordReplayAncestry(ObservedEvent observedEvent) {
+        int k = nSnapshots;
+
+        replayResampled[k] = resampledSinceSnapshot;
+        if (resampledSinceSnapshot) {
+            if (replayAncestors[k] == null)
+                replayAncestors[k] = new int[nParticles];
+            System.arraycopy(ancestorIndices, 0, replayAncestors[k], 0, nParticles);
+        }
+
+        if (observedEvent.type == ObservedEvent.Type.OBSERVATION_END)
+            System.arraycopy(logParticleWeights, 0, replayFinalLogWeights, 0, nParticles);
+
+        resampledSinceSnapshot = false;
+        nSnapshots += 1;
+    }
+
+    /**
+     * Regenerate the trajectory of a single particle from the most recent
+     * density evaluation.  The particle is chosen according to its final
+     * weight, its lineage identified from the recorded ancestry, and
+     * the lineage then re-simulated using the random streams which
+     * produced it originally.
+     */
+    private void replayTrajectory() {
+        replayTrajectoryPending = false;
+        replayedStates = new ArrayList<>();
+
+        int K = nSnapshots-1;
+        int[] lineage = new int[nSnapshots];
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int p=0; p<nParticles; p++)
+            maxLogWeight = Math.max(maxLogWeight, replayFinalLogWeights[p]);
+
+        double[] weights = new double[nParticles];
+        for (int p=0; p<nParticles; p++)
+            weights[p] = Math.exp(replayFinalLogWeights[p] - maxLogWeight);
+
+        lineage[K] = baseRandom.randomChoicePDF(weights);
+        for (int k=K; k>0; k--)
+            lineage[k-1] = replayResampled[k] ? replayAncestors[k][lineage[k]] : lineage[k];
+
+        EpidemicState particleState = model.getInitialState();
+        replayedStates.add(model.getInitialState());
+
+        replaying = true;
+        List<ObservedEvent> eventList = observedEventsList.getEventList();
+        for (int k=0; k<=K; k++) {
+            seededRandom.setSeed(replaySeed, k, lineage[k]);
+            updateParticle(particleState, lineage[k], eventList.get(k));
+        }
+        replaying = false;
+
+        recordedTrajectory = new EpidemicTrajectory(null, replayedStates, observedEventsList.getOrigin());
+        replayedStates = null;
+    }
+
+    /**
+     * Draw the trajectory from the most recent evaluation if the recording
+     * mode defers this until the trajectory is needed.
+     */
+    private void drawPendingTrajectory() {
+        if (snapshotTrajectoryPending)
+            drawSnapshotTrajectory();
+
+        if (replayTrajectoryPending)
+            replayTrajectory();
+
+        if (offHeapTrajectoryPending) {
+            offHeapTrajectoryPending = false;
+            recordedTrajectory = new EpidemicTrajectory(null,
+                    offHeapEnsemble.getTrajectory(0), offHeapTrajectoryOrigin);
+        }
+    }
+
+    double getObservedEventProbability(EpidemicState particleState,
+                                       ObservedEvent nextObservedEvent, double nextObservedEventTime,
+                                       ModelEvent nextModelEvent, double nextModelEventTime) {
 
         double conditionalLogP = 0.0;
 
@@ -489,6 +1641,14 @@ public class SMCTreeDensity extends TreeDistribution {
                 model.incrementState(particleState,
                         EpidemicEvent.MultipleRhoSamples(nextObservedEvent.multiplicity));
 
+            } else if (raoBlackwelliseSampling
+                    && nextObservedEvent.type != ObservedEvent.Type.SAMPLED_ANCESTOR) {
+
+                if (nextObservedEvent.type == ObservedEvent.Type.UNSEQUENCED_SAMPLE)
+                    conditionalLogP += getUnsequencedSampleBatchProbability(particleState, nextObservedEvent);
+                else
+                    conditionalLogP += getRBLeafProbability(particleState, nextObservedEvent);
+
             } else {
                 if (model.psiSamplingVariableInput.get() != null) {
 
@@ -533,7 +1693,7 @@ public class SMCTreeDensity extends TreeDistribution {
                                     if (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE] == 0.0) {
                                         isRemoval = false;
                                     } else {
-                                        isRemoval = Randomizer.nextDouble() * psiSamplingProp
+                                        isRemoval = random.nextDouble() * psiSamplingProp
                                                 < model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE];
                                     }
                                 }
@@ -571,7 +1731,7 @@ public class SMCTreeDensity extends TreeDistribution {
                         if (nextObservedEvent.type == ObservedEvent.Type.SAMPLED_ANCESTOR) {
                             conditionalLogP += Math.log((1.0 - model.currentRemovalProb) / particleState.I);
                         } else {
-                            boolean isRemoval = Randomizer.nextDouble() < model.currentRemovalProb;
+                            boolean isRemoval = random.nextDouble() < model.currentRemovalProb;
 
                             if (isRemoval) {
                                 model.incrementState(particleState, EpidemicEvent.OtherSampleRemove);
@@ -600,6 +1760,176 @@ public class SMCTreeDensity extends TreeDistribution {
         return conditionalLogP;
     }
 
+    /**
+     * Probability of a (possibly collated) leaf event in which the choice
+     * between removal and non-removal of each sample is drawn in proportion
+     * to its total contribution, including the probability that a
+     * non-removed sample lies on an observed lineage.  The weight increment
+     * is the sum of these contributions and so does not depend on the
+     * choice made.
+     *
+     * @param particleState particle state, updated by any removals
+     * @param observedEvent leaf event
+     * @return log conditional probability
+     */
+    private double getRBLeafProbability(EpidemicState particleState, ObservedEvent observedEvent) {
+        boolean psiSampling = model.psiSamplingVariableInput.get() != null;
+        double conditionalLogP = 0.0;
+
+        for (int i=0; i<observedEvent.multiplicity; i++) {
+            if (particleState.I <= 0)
+                return Double.NEGATIVE_INFINITY;
+
+            model.calculatePropensities(particleState);
+            double leafFactor = 1.0 - (observedEvent.lineages - 1)/particleState.I;
+
+            double removeWeight, noRemoveWeight;
+            if (psiSampling) {
+                removeWeight = model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE];
+                noRemoveWeight = model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE]*leafFactor;
+            } else {
+                removeWeight = model.currentRemovalProb;
+                noRemoveWeight = (1.0 - model.currentRemovalProb)*leafFactor;
+            }
+
+            double totalWeight = removeWeight + noRemoveWeight;
+            if (!(totalWeight > 0.0))
+                return Double.NEGATIVE_INFINITY;
+
+            conditionalLogP += Math.log(totalWeight);
+
+            if (removeWeight > 0.0 && random.nextDouble()*totalWeight < removeWeight) {
+                model.incrementState(particleState, EpidemicEvent.PsiSampleRemove);
+                if (!particleState.isValid())
+                    return Double.NEGATIVE_INFINITY;
+            }
+
+            if (psiSampling && model.sequencingProbInput.get() != null)
+                conditionalLogP += Math.log(model.sequencingProbInput.get().getArrayValue());
+        }
+
+        return conditionalLogP;
+    }
+
+    /**
+     * Probability of a batch of simultaneous unsequenced samples.  Each
+     * sample is a removal independently of the others, so the number of
+     * removals K is drawn directly from its binomial distribution.  Under
+     * psi-sampling each sample also contributes the sampling propensity at
+     * the prevalence it sees: the K removals together contribute a falling
+     * factorial of the initial prevalence, while the prevalence seen by the
+     * non-removals depends on how the two kinds of sample are interleaved.
+     * This dependence is integrated out exactly, so the weight depends on
+     * the particle only through K.
+     *
+     * @param particleState particle state, updated by the removals
+     * @param observedEvent unsequenced sample event
+     * @return log conditional probability
+     */
+    private double getUnsequencedSampleBatchProbability(EpidemicState particleState,
+                                                        ObservedEvent observedEvent) {
+        boolean psiSampling = model.psiSamplingVariableInput.get() != null;
+        int m = observedEvent.multiplicity;
+
+        model.calculatePropensities(particleState);
+
+        long I0 = Math.round(particleState.I);
+        if (psiSampling && I0 <= 0)
+            return Double.NEGATIVE_INFINITY;
+
+        double removalProb, psiRate = 0.0;
+        if (psiSampling) {
+            psiRate = (model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]
+                    + model.propensities[EpidemicEvent.PSI_SAMPLE_NOREMOVE])/particleState.I;
+            if (!(psiRate > 0.0))
+                return Double.NEGATIVE_INFINITY;
+
+            removalProb = model.propensities[EpidemicEvent.PSI_SAMPLE_REMOVE]/particleState.I/psiRate;
+        } else
+            removalProb = model.currentRemovalProb;
+
+        long K = random.nextBinomial(m, removalProb);
+        if (K > I0)
+            return Double.NEGATIVE_INFINITY;
+
+        double conditionalLogP = 0.0;
+
+        if (psiSampling) {
+            conditionalLogP += m*Math.log(psiRate)
+                    + GammaFunction.lnGamma(I0 + 1.0) - GammaFunction.lnGamma(I0 - K + 1.0)
+                    + getExpectedNonRemovalPrevalenceLogProduct(I0, K, m - K);
+
+            if (model.sequencingProbInput.get() != null)
+                conditionalLogP += m*Math.log(1.0 - model.sequencingProbInput.get().getArrayValue());
+        }
+
+        if (K > 0)
+            model.incrementState(particleState, EpidemicEvent.MultiplePsiSampleRemove((int)K));
+
+        if (!particleState.isValid())
+            return Double.NEGATIVE_INFINITY;
+
+        return conditionalLogP;
+    }
+
+    /**
+     * Log of the expected product of the prevalences seen by the
+     * non-removal samples, over all equally likely interleavings of K
+     * removals and n non-removals.  Writing E(i,j) for this expectation
+     * relative to I0^j with i removals and j non-removals, conditioning on
+     * the type of the final sample gives
+     *
+     *   E(i,j) = i/(i+j) E(i-1,j) + j/(i+j) (1 - i/I0) E(i,j-1),
+     *
+     * which is evaluated in O(Kn) time using O(min(K,n)) storage.
+     *
+     * @param I0 prevalence before the first sample
+     * @param K number of removals
+     * @param n number of non-removals
+     * @return log expected product of prevalences
+     */
+    private double getExpectedNonRemovalPrevalenceLogProduct(long I0, long K, long n) {
+        if (n == 0)
+            return 0.0;
+
+        int len = (int)Math.min(K, n) + 1;
+        if (interleavingExpectations == null || interleavingExpectations.length < len)
+            interleavingExpectations = new double[len];
+
+        double[] E = interleavingExpectations;
+        Arrays.fill(E, 0, len, 1.0);
+
+        if (K <= n) {
+            // E[i] holds E(i,j) for the current number j of non-removals.
+            for (long j=1; j<=n; j++) {
+                for (int i=1; i<len; i++)
+                    E[i] = (i*E[i-1] + j*(1.0 - i/(double)I0)*E[i])/(i + j);
+            }
+        } else {
+            // E[j] holds E(i,j) for the current number i of removals.
+            for (long i=1; i<=K; i++) {
+                double y = 1.0 - i/(double)I0;
+                for (int j=1; j<len; j++)
+                    E[j] = (i*E[j] + j*y*E[j-1])/(i + j);
+            }
+        }
+
+        return n*Math.log(I0) + Math.log(E[len-1]);
+    }
+
+    /**
+     * Evaluate the density after model parameters have been modified
+     * outside of any MCMC state, as by ParallelDensityRunnable.
+     *
+     * @return log of estimated density
+     */
+    public double recalculateLogP() {
+        model.makeDirty();
+        observedEventsList.makeDirty();
+
+        return calculateLogP();
+    }
+
     /**
      * @return Trajectory conditioned on tree, for logging during PMMH analysis.
      */
@@ -614,9 +1944,53 @@ public class SMCTreeDensity extends TreeDistribution {
         model.makeDirty();
         observedEventsList.makeDirty();
         calculateLogP();
-        return new EpidemicTrajectory(null,
-                new ArrayList<>(recordedTrajectoryStates),
-                observedEventsList.getOrigin());
+        drawPendingTrajectory();
+
+        return recordedTrajectory;
+    }
+
+    /**
+     * Unlike getMostRecentTrajectory(), this does not rerun the particle
+     * filter, so is cheap to call between evaluations.
+     *
+     * @return Trajectory from the most recent density evaluation, whether
+     * or not that evaluation was accepted, or null if there has been none.
+     */
+    public EpidemicTrajectory getLastEvaluatedTrajectory() {
+        drawPendingTrajectory();
+
+        return recordedTrajectory;
+    }
+
+    /**
+     * Ensure that the trajectory of every evaluation, and its derived
+     * series, are obtained before the parameters which produced it can
+     * change.  Called by loggers of the last evaluated trajectory.
+     */
+    public void requireLastEvaluatedTrajectory() {
+        lastEvaluatedTrajectoryRequired = true;
+    }
+
+    /**
+     * Retrieve incidence, reproductive number and cumulative infection
+     * series for the conditioned trajectory or, if
+     * requireLastEvaluatedTrajectory() has been called, the last evaluated
+     * trajectory.  These are computed once per trajectory, using the
+     * parameters which produced it, and shared between all loggers.
+     *
+     * @param traj trajectory produced by this density
+     * @return derived series
+     */
+    public DerivedTrajectorySeries getDerivedSeries(EpidemicTrajectory traj) {
+        if (traj == storedTrajectory && storedSeries != null)
+            return storedSeries;
+
+        if (traj == recordedTrajectory && recordedSeries != null)
+            return recordedSeries;
+
+        throw new IllegalArgumentException("Derived series are only available " +
+                "for the conditioned trajectory or, if required, the last " +
+                "evaluated trajectory.");
     }
 
     /**
@@ -626,6 +2000,24 @@ public class SMCTreeDensity extends TreeDistribution {
         return modelInput.get();
     }
 
+    /**
+     * Draw the pseudo-random variates used by this density from the given
+     * source instead of BEAST's global Randomizer.  The source is not
+     * synchronised, so a density given its own source may be evaluated
+     * concurrently with other densities.
+     *
+     * @param source source of pseudo-random variates
+     */
+    public void setRandomSource(RandomSource source) {
+        if (random == baseRandom)
+            random = source;
+
+        if (rqmcRandom != null)
+            rqmcRandom.setBase(source);
+
+        baseRandom = source;
+    }
+
 
     /*
      * StateNode implementation
@@ -640,6 +2032,17 @@ public class SMCTreeDensity extends TreeDistribution {
     @Override
     public void restore() {
         observedEventsList.makeDirty();
+
+        // Drawing a snapshot trajectory or replaying requires the
+        // parameters of the rejected evaluation, which are no longer
+        // available.
+        if (snapshotTrajectoryPending || replayTrajectoryPending) {
+            snapshotTrajectoryPending = false;
+            replayTrajectoryPending = false;
+            recordedTrajectory = storedTrajectory;
+            recordedSeries = storedSeries;
+        }
+
         super.restore();
     }
 
@@ -647,8 +2050,67 @@ public class SMCTreeDensity extends TreeDistribution {
     protected void accept() {
         super.accept();
 
-        List<EpidemicState> stateListCopy = new ArrayList<>(recordedTrajectoryStates);
-        storedTrajectory = new EpidemicTrajectory(null, stateListCopy, observedEventsList.getOrigin());
+        drawPendingTrajectory();
+        if (recordedSeries == null)
+            recordedSeries = new DerivedTrajectorySeries(model, recordedTrajectory.getStateList());
+
+        storedTrajectory = recordedTrajectory;
+        storedSeries = recordedSeries;
+    }
+
+    /**
+     * Particle filter state part way through an incremental evaluation.
+     */
+    public static class FilterState {
+        EpidemicState[] particleStates;
+        ParticlePath[] particlePaths;
+        double[] logParticleWeights;
+        double logP;
+        int generation;
+    }
+
+    /**
+     * Node in a persistent singly-linked list of recorded particle states.
+     * Particles produced by resampling share the path of their ancestor,
+     * and extending one particle's path never modifies any other path.
+     */
+    private static class ParticlePath {
+        final EpidemicState state;
+        final ParticlePath previous;
+        final int length;
+
+        ParticlePath(EpidemicState state, ParticlePath previous) {
+            this.state = state;
+            this.previous = previous;
+            this.length = previous != null ? previous.length + 1 : 1;
+        }
+    }
+
+    /**
+     * Trajectory backed by a particle path.  The state list is assembled
+     * only when first requested.
+     */
+    private static class ParticlePathTrajectory extends EpidemicTrajectory {
+        ParticlePath path;
+
+        ParticlePathTrajectory(ParticlePath path, double origin) {
+            super(null, null, origin);
+            this.path = path;
+        }
+
+        @Override
+        public synchronized List<EpidemicState> getStateList() {
+            if (stateList == null) {
+                EpidemicState[] states = new EpidemicState[path.length];
+                for (ParticlePath node = path; node != null; node = node.previous)
+                    states[node.length-1] = node.state;
+
+                stateList = Arrays.asList(states);
+                path = null;
+            }
+
+            return stateList;
+        }
     }
 
     /*
@@ -61,6 +61,11 @@ public class BirthDeathModel extends EpidemicModel {
         }
     }
 
+    @Override
+    public boolean infectionDepletesSusceptibles() {
+        return false;
+    }
+
     @Override
     public double getTau(double epsilon, EpidemicState state, double infectionProp, double recoveryProp) {
         double muI = infectionProp - recoveryProp;
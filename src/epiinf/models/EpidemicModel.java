@@ -328,6 +328,14 @@ public abstract class EpidemicModel extends CalculationNode {
     public abstract void incrementState(EpidemicState state,
             EpidemicEvent event);
 
+    /**
+     * @return true if infection events remove individuals from the
+     * susceptible population
+     */
+    public boolean infectionDepletesSusceptibles() {
+        return true;
+    }
+
     /**
      * Uses algorithm outlined in Cao et al. (JCP, 2006) to select the next
      * tau leaping step size.
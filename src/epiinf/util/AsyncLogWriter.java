@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes log lines to a file on a background thread, so that formatting
+ * and slow file systems do not hold up the MCMC thread.  Records are
+ * passed through a bounded queue: when the writer falls behind by more
+ * than the queue capacity, submitting a record blocks until space
+ * becomes available.
+ *
+ * Records must not refer to any mutable state shared with the MCMC
+ * thread.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class AsyncLogWriter {
+
+    /**
+     * Deferred log line.
+     */
+    public interface Record {
+        /**
+         * Write the record, excluding the sample number and line
+         * terminator, to the given stream.
+         *
+         * @param out destination stream
+         */
+        void write(PrintStream out);
+    }
+
+    private static class Entry {
+        final long sample;
+        final Record record;
+
+        Entry(long sample, Record record) {
+            this.sample = sample;
+            this.record = record;
+        }
+    }
+
+    private static final Entry END = new Entry(-1, null);
+
+    private final BlockingQueue<Entry> queue;
+    private final PrintStream out;
+    private final Thread writerThread;
+    private final String fileName;
+
+    private volatile Throwable writerError;
+
+    /**
+     * Open a log file and start the writer thread.
+     *
+     * @param fileName name of log file
+     * @param columnName name of the column following the sample number
+     * @param capacity maximum number of records awaiting output
+     */
+    public AsyncLogWriter(String fileName, String columnName, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+
+        this.fileName = fileName;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        try {
+            out = new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeException("Error opening log file '" + fileName + "'.");
+        }
+
+        out.println("Sample\t" + columnName);
+
+        writerThread = new Thread(this::run, "EpiInf log writer (" + fileName + ")");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            if (entry == END)
+                return;
+
+            // After a failure keep draining the queue, so that the MCMC
+            // thread never blocks forever.
+            if (writerError != null)
+                continue;
+
+            try {
+                out.print(entry.sample);
+                out.print("\t");
+                entry.record.write(out);
+                out.println();
+
+                // Flushing when idle also exposes any write failure.
+                if (queue.isEmpty() && out.checkError())
+                    writerError = new IOException("Write failed.");
+            } catch (Throwable ex) {
+                writerError = ex;
+            }
+        }
+    }
+
+    /**
+     * Queue a record for writing, blocking if the queue is full.
+     *
+     * @param sample MCMC sample number
+     * @param record record to write
+     */
+    public void submit(long sample, Record record) {
+        checkError();
+
+        try {
+            queue.put(new Entry(sample, record));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing log record.");
+        }
+    }
+
+    /**
+     * Write all outstanding records and close the log file.
+     */
+    public void close() {
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (out.checkError() && writerError == null)
+            writerError = new IOException("Write failed.");
+        out.close();
+
+        checkError();
+    }
+
+    private void checkError() {
+        if (writerError != null)
+            throw new RuntimeException("Error writing to log file '" + fileName + "'.");
+    }
+}
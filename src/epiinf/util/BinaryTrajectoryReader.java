@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import epiinf.EpidemicState;
+import epiinf.EpidemicTrajectory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static epiinf.util.BinaryTrajectoryWriter.*;
+
+/**
+ * Random-access reader for logs produced by BinaryTrajectoryWriter.
+ *
+ * The record index is read from the end of the file when present.
+ * Otherwise it is rebuilt by scanning the records, ignoring any
+ * incomplete record at the end of the file.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BinaryTrajectoryReader implements Closeable {
+
+    private final FileChannel channel;
+    private final String[] columnNames;
+    private final Inflater inflater = new Inflater();
+
+    private long[] samples, offsets;
+    private int nRecords;
+
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+    /**
+     * Open a binary trajectory log.
+     *
+     * @param file log file
+     * @throws IOException if file cannot be read or is not a binary
+     * trajectory log
+     */
+    public BinaryTrajectoryReader(File file) throws IOException {
+        channel = new FileInputStream(file).getChannel();
+
+        try {
+            ByteBuffer buf = readAt(0, 12);
+            if (buf.getInt() != FILE_MAGIC)
+                throw new IOException(file + " is not a binary trajectory log.");
+            if (buf.getInt() != VERSION)
+                throw new IOException("Unsupported binary trajectory log version.");
+
+            int nColumns = buf.getInt();
+            columnNames = new String[nColumns];
+            long pos = 12;
+            for (int c=0; c<nColumns; c++) {
+                int len = readAt(pos, 4).getInt();
+                columnNames[c] = new String(readAt(pos+4, len).array(), StandardCharsets.UTF_8);
+                pos += 4 + len;
+            }
+
+            if (!readIndex())
+                scanRecords(pos);
+
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return names of the columns stored for each state
+     */
+    public String[] getColumnNames() {
+        return columnNames.clone();
+    }
+
+    /**
+     * @param name column name
+     * @return index of named column, or -1 if absent
+     */
+    public int getColumnIndex(String name) {
+        return Arrays.asList(columnNames).indexOf(name);
+    }
+
+    /**
+     * @return number of trajectories in the log
+     */
+    public int getRecordCount() {
+        return nRecords;
+    }
+
+    /**
+     * @param r record index
+     * @return MCMC sample number of record
+     */
+    public long getSample(int r) {
+        checkRecord(r);
+        return samples[r];
+    }
+
+    /**
+     * @param r record index
+     * @return origin time of recorded trajectory
+     * @throws IOException on read failure
+     */
+    public double getOrigin(int r) throws IOException {
+        return readRecordHeader(r).getDouble(12);
+    }
+
+    /**
+     * Read all columns of a record.
+     *
+     * @param r record index
+     * @return array whose cth element holds the values of column c
+     * @throws IOException on read failure
+     */
+    public double[][] readColumns(int r) throws IOException {
+        ByteBuffer header = readRecordHeader(r);
+        int nStates = header.getInt(20);
+        boolean isCompressed = header.get(24) != 0;
+        int payloadBytes = header.getInt(25);
+
+        ByteBuffer payload = readAt(offsets[r] + RECORD_HEADER_BYTES, payloadBytes);
+
+        if (isCompressed) {
+            byte[] inflated = new byte[8*columnNames.length*nStates];
+            inflater.reset();
+            inflater.setInput(payload.array(), 0, payloadBytes);
+            try {
+                int len = 0;
+                while (len < inflated.length && !inflater.finished())
+                    len += inflater.inflate(inflated, len, inflated.length - len);
+
+                if (len < inflated.length)
+                    throw new IOException("Truncated record " + r + ".");
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt record " + r + ".", ex);
+            }
+            payload = ByteBuffer.wrap(inflated);
+        }
+
+        double[][] columns = new double[columnNames.length][nStates];
+        DoubleBuffer values = payload.asDoubleBuffer();
+        for (double[] column : columns)
+            values.get(column);
+
+        return columns;
+    }
+
+    /**
+     * Read a single column of a record.
+     *
+     * @param r record index
+     * @param name column name
+     * @return column values
+     * @throws IOException on read failure
+     */
+    public double[] readColumn(int r, String name) throws IOException {
+        int c = getColumnIndex(name);
+        if (c < 0)
+            throw new IllegalArgumentException("No column named " + name + ".");
+
+        ByteBuffer header = readRecordHeader(r);
+        if (header.get(24) != 0)
+            return readColumns(r)[c];
+
+        // Uncompressed columns can be read directly.
+        int nStates = header.getInt(20);
+        double[] column = new double[nStates];
+        readAt(offsets[r] + RECORD_HEADER_BYTES + 8L*c*nStates, 8*nStates)
+                .asDoubleBuffer().get(column);
+
+        return column;
+    }
+
+    /**
+     * Reconstruct a logged trajectory.  Requires the age, S, I and R
+     * columns, and uses the cumulativeInfections column when present.
+     *
+     * @param r record index
+     * @return trajectory
+     * @throws IOException on read failure
+     */
+    public EpidemicTrajectory readTrajectory(int r) throws IOException {
+        double origin = getOrigin(r);
+        double[][] columns = readColumns(r);
+
+        double[] age = columns[requireColumn("age")];
+        double[] S = columns[requireColumn("S")];
+        double[] I = columns[requireColumn("I")];
+        double[] R = columns[requireColumn("R")];
+        int ciIdx = getColumnIndex("cumulativeInfections");
+
+        List<EpidemicState> states = new ArrayList<>(age.length);
+        for (int i=0; i<age.length; i++) {
+            EpidemicState state = new EpidemicState(S[i], I[i], R[i],
+                    ciIdx >= 0 ? columns[ciIdx][i] : 0.0);
+            state.time = origin - age[i];
+            states.add(state);
+        }
+
+        return new EpidemicTrajectory(null, states, origin);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        inflater.end();
+    }
+
+    /*
+     * Index handling
+     */
+
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < TRAILER_BYTES)
+            return false;
+
+        ByteBuffer trailer = readAt(size - TRAILER_BYTES, TRAILER_BYTES);
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != TRAILER_MAGIC || indexOffset < 0 || indexOffset > size - TRAILER_BYTES - 8)
+            return false;
+
+        ByteBuffer indexHeader = readAt(indexOffset, 8);
+        if (indexHeader.getInt() != INDEX_MAGIC)
+            return false;
+
+        nRecords = indexHeader.getInt();
+        if (nRecords < 0 || indexOffset + 8 + 16L*nRecords + TRAILER_BYTES != size)
+            return false;
+
+        ByteBuffer index = readAt(indexOffset + 8, 16*nRecords);
+        samples = new long[nRecords];
+        offsets = new long[nRecords];
+        for (int r=0; r<nRecords; r++) {
+            samples[r] = index.getLong();
+            offsets[r] = index.getLong();
+        }
+
+        return true;
+    }
+
+    private void scanRecords(long pos) throws IOException {
+        long size = channel.size();
+        samples = new long[1024];
+        offsets = new long[1024];
+        nRecords = 0;
+
+        while (pos + RECORD_HEADER_BYTES <= size) {
+            ByteBuffer header = readAt(pos, RECORD_HEADER_BYTES);
+            if (header.getInt(0) != RECORD_MAGIC)
+                break;
+
+            long end = pos + RECORD_HEADER_BYTES + header.getInt(25);
+            if (end > size)
+                break;
+
+            if (nRecords == samples.length) {
+                samples = Arrays.copyOf(samples, 2*nRecords);
+                offsets = Arrays.copyOf(offsets, 2*nRecords);
+            }
+            samples[nRecords] = header.getLong(4);
+            offsets[nRecords] = pos;
+            nRecords += 1;
+
+            pos = end;
+        }
+    }
+
+    /*
+     * Low-level access
+     */
+
+    private void checkRecord(int r) {
+        if (r < 0 || r >= nRecords)
+            throw new IndexOutOfBoundsException("Record " + r + " out of range.");
+    }
+
+    private int requireColumn(String name) {
+        int c = getColumnIndex(name);
+        if (c < 0)
+            throw new IllegalStateException("Log has no " + name + " column.");
+        return c;
+    }
+
+    private ByteBuffer readRecordHeader(int r) throws IOException {
+        checkRecord(r);
+
+        recordHeader.clear();
+        readFully(offsets[r], recordHeader);
+        if (recordHeader.getInt(0) != RECORD_MAGIC)
+            throw new IOException("Corrupt record " + r + ".");
+
+        return recordHeader;
+    }
+
+    private ByteBuffer readAt(long pos, int nBytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(nBytes);
+        readFully(pos, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private void readFully(long pos, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new IOException("Unexpected end of binary trajectory log.");
+            pos += n;
+        }
+    }
+}
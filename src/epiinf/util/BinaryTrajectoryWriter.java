@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writer for binary trajectory logs.
+ *
+ * A log consists of a header listing the column names, followed by one
+ * record per logged sample and finally an index giving the file offset
+ * of each record.  Each record holds the values of every column for
+ * every state of the logged trajectory, stored column by column as
+ * big-endian doubles and optionally deflate-compressed.
+ *
+ * File layout:
+ *
+ *   header:  int FILE_MAGIC, int VERSION, int nColumns, nColumns names
+ *            (each an int byte count followed by UTF-8 bytes)
+ *   record:  int RECORD_MAGIC, long sample, double origin, int nStates,
+ *            byte compressed, int payloadBytes, payload
+ *   index:   int INDEX_MAGIC, int nRecords, nRecords (long sample,
+ *            long offset) pairs
+ *   trailer: long indexOffset, int TRAILER_MAGIC
+ *
+ * Logs which lack the index, for instance because the writing process
+ * was killed, remain readable: see BinaryTrajectoryReader.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BinaryTrajectoryWriter implements Closeable {
+
+    public static final int FILE_MAGIC = 0x45504954;     // "EPIT"
+    public static final int RECORD_MAGIC = 0x54524543;   // "TREC"
+    public static final int INDEX_MAGIC = 0x54494458;    // "TIDX"
+    public static final int TRAILER_MAGIC = 0x54454e44;  // "TEND"
+    public static final int VERSION = 1;
+
+    public static final int RECORD_HEADER_BYTES = 4 + 8 + 8 + 4 + 1 + 4;
+    public static final int TRAILER_BYTES = 8 + 4;
+
+    private final FileChannel channel;
+    private final int nColumns;
+    private final Deflater deflater;
+
+    private ByteBuffer payload = ByteBuffer.allocate(0);
+    private byte[] compressed = new byte[0];
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+    private long[] indexSamples = new long[1024];
+    private long[] indexOffsets = new long[1024];
+    private int nRecords;
+
+    /**
+     * Create a new binary trajectory log, overwriting any existing file.
+     *
+     * @param file file to write
+     * @param columnNames names of columns stored for each state
+     * @param compress if true, compress each record
+     * @throws IOException if file cannot be written
+     */
+    public BinaryTrajectoryWriter(File file, String[] columnNames, boolean compress) throws IOException {
+        channel = new FileOutputStream(file).getChannel();
+        nColumns = columnNames.length;
+        deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+
+        byte[][] nameBytes = new byte[nColumns][];
+        int headerBytes = 3*4;
+        for (int c=0; c<nColumns; c++) {
+            nameBytes[c] = columnNames[c].getBytes(StandardCharsets.UTF_8);
+            headerBytes += 4 + nameBytes[c].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerBytes);
+        header.putInt(FILE_MAGIC).putInt(VERSION).putInt(nColumns);
+        for (byte[] name : nameBytes)
+            header.putInt(name.length).put(name);
+
+        header.flip();
+        writeFully(header);
+    }
+
+    /**
+     * Append a trajectory to the log.
+     *
+     * @param sample MCMC sample number
+     * @param origin origin time of the trajectory
+     * @param nStates number of states in the trajectory
+     * @param columns array whose cth element holds the values of column c,
+     *                with at least nStates elements
+     * @throws IOException if record cannot be written
+     */
+    public void writeSample(long sample, double origin, int nStates, double[][] columns) throws IOException {
+        if (columns.length != nColumns)
+            throw new IllegalArgumentException("Expected " + nColumns
+                    + " columns, got " + columns.length + ".");
+
+        // Records are addressed by a single int length, so a trajectory
+        // too large for one ByteBuffer cannot be written.
+        long payloadSize = 8L*nColumns*nStates;
+        if (payloadSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Trajectory with " + nStates
+                    + " states and " + nColumns + " columns is too large to "
+                    + "write as a single record.");
+
+        int payloadBytes = (int)payloadSize;
+        if (payload.capacity() < payloadBytes)
+            payload = ByteBuffer.allocate((int)Math.min(Integer.MAX_VALUE,
+                    Math.max(payloadBytes, 2L*payload.capacity())));
+
+        payload.clear();
+        for (int c=0; c<nColumns; c++) {
+            for (int i=0; i<nStates; i++)
+                payload.putDouble(columns[c][i]);
+        }
+        payload.flip();
+
+        ByteBuffer body = payload;
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(payload.array(), 0, payloadBytes);
+            deflater.finish();
+
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == compressed.length)
+                    compressed = Arrays.copyOf(compressed, (int)Math.min(Integer.MAX_VALUE,
+                            Math.max(4096, 2L*compressed.length)));
+                len += deflater.deflate(compressed, len, compressed.length - len);
+            }
+            body = ByteBuffer.wrap(compressed, 0, len);
+        }
+
+        long offset = channel.position();
+
+        recordHeader.clear();
+        recordHeader.putInt(RECORD_MAGIC)
+                .putLong(sample)
+                .putDouble(origin)
+                .putInt(nStates)
+                .put((byte)(deflater != null ? 1 : 0))
+                .putInt(body.remaining());
+        recordHeader.flip();
+
+        writeFully(recordHeader);
+        writeFully(body);
+
+        if (nRecords == indexSamples.length) {
+            indexSamples = Arrays.copyOf(indexSamples, 2*nRecords);
+            indexOffsets = Arrays.copyOf(indexOffsets, 2*nRecords);
+        }
+        indexSamples[nRecords] = sample;
+        indexOffsets[nRecords] = offset;
+        nRecords += 1;
+    }
+
+    /**
+     * @return number of records written so far
+     */
+    public int getRecordCount() {
+        return nRecords;
+    }
+
+    /**
+     * Write the record index and close the log.
+     *
+     * @throws IOException if index cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+
+        long indexOffset = channel.position();
+
+        ByteBuffer index = ByteBuffer.allocate(8 + 16*nRecords + TRAILER_BYTES);
+        index.putInt(INDEX_MAGIC).putInt(nRecords);
+        for (int r=0; r<nRecords; r++)
+            index.putLong(indexSamples[r]).putLong(indexOffsets[r]);
+        index.putLong(indexOffset).putInt(TRAILER_MAGIC);
+        index.flip();
+
+        writeFully(index);
+        channel.close();
+
+        if (deflater != null)
+            deflater.end();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Expands trajectory logs written with deduplication enabled, replacing
+ * each back-reference with the trajectory it refers to.  A back-reference
+ * is a cell of the form "@N", where N is the sample number of the most
+ * recent line on which the same column held a complete trajectory.  NA
+ * cells are not complete trajectories, so are never referred to.
+ *
+ * Only the last complete value of each column is held in memory, so logs
+ * of any length can be expanded.
+ *
+ * Usage: DeduplicatedLogExpander input.log output.log
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class DeduplicatedLogExpander {
+
+    public static final String BACK_REFERENCE_PREFIX = "@";
+
+    /**
+     * Format a back-reference to a previously logged value.
+     *
+     * @param sample sample number of line holding the value
+     * @return back-reference cell
+     */
+    public static String getBackReference(long sample) {
+        return BACK_REFERENCE_PREFIX + sample;
+    }
+
+    /**
+     * Expand a deduplicated log.  Comment lines and the header line are
+     * copied unchanged.
+     *
+     * @param in deduplicated log
+     * @param out destination of expanded log
+     * @throws IOException on read failure or dangling back-reference
+     */
+    public static void expand(BufferedReader in, PrintStream out) throws IOException {
+        Map<Integer, String> lastValues = new HashMap<>();
+        Map<Integer, String> lastSamples = new HashMap<>();
+
+        boolean headerSeen = false;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!headerSeen || line.startsWith("#") || line.trim().isEmpty()) {
+                if (!line.startsWith("#") && !line.trim().isEmpty())
+                    headerSeen = true;
+
+                out.println(line);
+                continue;
+            }
+
+            String[] cells = line.split("\t", -1);
+            for (int c=1; c<cells.length; c++) {
+                if (cells[c].startsWith(BACK_REFERENCE_PREFIX)) {
+                    String refSample = cells[c].substring(BACK_REFERENCE_PREFIX.length());
+                    if (!refSample.equals(lastSamples.get(c)))
+                        throw new IOException("Back-reference " + cells[c]
+                                + " on sample " + cells[0] + " does not refer to "
+                                + "the most recent complete value.");
+
+                    cells[c] = lastValues.get(c);
+                } else if (!cells[c].equals("NA")) {
+                    // Loggers never refer back to missing values.
+                    lastValues.put(c, cells[c]);
+                    lastSamples.put(c, cells[0]);
+                }
+            }
+
+            out.println(String.join("\t", cells));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: DeduplicatedLogExpander input.log output.log");
+            System.exit(1);
+        }
+
+        try (BufferedReader in = new BufferedReader(new FileReader(args[0]));
+             PrintStream out = new PrintStream(args[1])) {
+            expand(in, out);
+        }
+    }
+}
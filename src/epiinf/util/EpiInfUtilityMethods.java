@@ -18,10 +18,8 @@ package epiinf.util;
 
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
-import beast.base.util.Binomial;
 import beast.base.util.GammaFunction;
 import beast.base.inference.distribution.Gamma;
-import beast.base.util.Randomizer;
 
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
@@ -66,38 +64,6 @@ public class EpiInfUtilityMethods {
         ps.println(origin + " 99");
     }
 
-    /**
-     * Basic inverse CDF sampler for binomial distribution.
-     *
-     * @param p success probability
-     * @param n number of trials
-     * @return number of successes
-     */
-    private static int nextBinomialICDF(double p, int n) {
-
-        double u = Randomizer.nextDouble();
-
-        int m = 0;
-        double acc = 0;
-        do {
-            acc += Binomial.choose(n, m)*Math.pow(p, m)*Math.pow(1.0-p, n-m);
-        } while (u > acc && ++m < n);
-
-        return m;
-    }
-
-    /**
-     * Sampler for binomial distribution that uses a normal approximation.
-     * Need a reject step in here to make this exact - currently only approximate!
-     *
-     * @param p success probability
-     * @param n number of trials
-     * @return number of successes
-     */
-    private static int nextBinomialNormal(double p, int n) {
-        return (int)Math.round(n*p + Randomizer.nextGaussian()*Math.sqrt(n*p*(1-p)));
-    }
-
     /**
      * Sampler for binomial distribution.
      *
@@ -106,16 +72,7 @@ public class EpiInfUtilityMethods {
      * @return number of successes
      */
     public static int nextBinomial(double p, int n) {
-        if (p == 0 || n == 0)
-            return 0;
-
-        if (p == 1.0)
-            return n;
-
-        if (n*p > 10.0 && n*(1.0 - p) > 10.0)
-            return nextBinomialNormal(p, n);
-
-        return nextBinomialICDF(p, n);
+        return (int)RandomSource.RANDOMIZER.nextBinomial(n, p);
     }
 
     public static void main(String[] args) throws FileNotFoundException {
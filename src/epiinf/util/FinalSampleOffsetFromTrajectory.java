@@ -22,8 +22,6 @@ import beast.base.inference.parameter.RealParameter;
 import epiinf.EpidemicEvent;
 import epiinf.EpidemicTrajectory;
 
-import java.util.List;
-
 /**
  * @author Tim Vaughan <tgvaughan@gmail.com>
  */
@@ -39,10 +37,9 @@ public class FinalSampleOffsetFromTrajectory extends RealParameter {
     @Override
     public void initAndValidate() {
         EpidemicTrajectory trajectory = trajectoryInput.get();
-        List<EpidemicEvent> eventList = trajectory.getEventList();
-        for (int i=eventList.size()-1; i<eventList.size(); i--) {
-            if (eventList.get(i).isSample()) {
-                valuesInput.setValue(trajectory.getOrigin() - eventList.get(i).time, this);
+        for (int i=trajectory.getEventCount()-1; i>=0; i--) {
+            if (EpidemicEvent.isSample(trajectory.getEventType(i))) {
+                valuesInput.setValue(trajectory.getOrigin() - trajectory.getEventTime(i), this);
                 super.initAndValidate();
 
                 System.out.println("FinalSampleOffset of " + getValue() + " read from trajectory");
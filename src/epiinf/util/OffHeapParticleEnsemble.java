@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import epiinf.EpidemicState;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Particle ensemble whose states and recorded trajectories live outside
+ * of the JVM heap, in direct byte buffers.  This avoids creating one
+ * EpidemicState object per particle per step, which for very large
+ * ensembles leads to long garbage collection pauses.
+ *
+ * Recorded trajectory states are kept in an append-only arena in which
+ * each record points to the record preceding it on the same particle
+ * path.  Resampling therefore only copies the index of the most recent
+ * record of each particle, with the shared history of resampled particles
+ * stored only once.  When the arena fills, records no longer reachable
+ * from any particle are discarded and the remainder compacted.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class OffHeapParticleEnsemble {
+
+    // State record layout: S, I, R, cumulativeInfections, time,
+    // modelIntervalIdx, observedEventIdx, algorithm.
+    private static final int S_OFFSET = 0;
+    private static final int I_OFFSET = 8;
+    private static final int R_OFFSET = 16;
+    private static final int CI_OFFSET = 24;
+    private static final int TIME_OFFSET = 32;
+    private static final int MODEL_IDX_OFFSET = 40;
+    private static final int OBS_IDX_OFFSET = 44;
+    private static final int ALG_OFFSET = 48;
+    public static final int STATE_BYTES = 52;
+
+    // Trajectory records additionally store the index of their parent record.
+    private static final int PARENT_OFFSET = STATE_BYTES;
+    public static final int RECORD_BYTES = STATE_BYTES + 4;
+
+    private static final int CHUNK_RECORDS = 1 << 20;
+
+    private static final EpidemicState.Algorithm[] algorithms = EpidemicState.Algorithm.values();
+
+    private final int nParticles;
+    private ByteBuffer states, statesNew;
+    private ByteBuffer heads, headsNew;
+
+    private final List<ByteBuffer> arenaChunks = new ArrayList<>();
+    private final int arenaCapacity;
+    private int arenaSize;
+
+    /**
+     * Create a new off-heap ensemble.
+     *
+     * @param nParticles number of particles in ensemble
+     * @param memoryBudget total number of bytes available for particle
+     *                     states and recorded trajectories
+     */
+    public OffHeapParticleEnsemble(int nParticles, long memoryBudget) {
+        this.nParticles = nParticles;
+
+        long stateBytes = 2L*nParticles*STATE_BYTES;
+        long headBytes = 2L*nParticles*4;
+
+        if ((long)nParticles*STATE_BYTES > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many particles for off-heap ensemble.");
+
+        long arenaBytes = memoryBudget - stateBytes - headBytes;
+        if (arenaBytes < (long)(nParticles+1)*RECORD_BYTES)
+            throw new IllegalArgumentException("Off-heap memory budget of "
+                    + memoryBudget + " bytes is too small for "
+                    + nParticles + " particles.");
+
+        arenaCapacity = (int)Math.min(Integer.MAX_VALUE, arenaBytes/RECORD_BYTES);
+
+        states = allocate(nParticles*STATE_BYTES);
+        statesNew = allocate(nParticles*STATE_BYTES);
+        heads = allocate(nParticles*4);
+        headsNew = allocate(nParticles*4);
+    }
+
+    private static ByteBuffer allocate(int nBytes) {
+        return ByteBuffer.allocateDirect(nBytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return number of particles in ensemble
+     */
+    public int getParticleCount() {
+        return nParticles;
+    }
+
+    /**
+     * Assign initial state to every particle and discard all previously
+     * recorded trajectories.
+     *
+     * @param initialState state to assign
+     */
+    public void reset(EpidemicState initialState) {
+        for (int p=0; p<nParticles; p++) {
+            writeState(states, p*STATE_BYTES, initialState);
+            heads.putInt(4*p, 0);
+        }
+
+        arenaSize = 0;
+        appendRecord(initialState, -1);
+    }
+
+    /**
+     * Copy state of chosen particle into the provided state object.
+     *
+     * @param p particle index
+     * @param dest destination state
+     */
+    public void loadState(int p, EpidemicState dest) {
+        readState(states, p*STATE_BYTES, dest);
+    }
+
+    /**
+     * Overwrite state of chosen particle with the provided state.
+     *
+     * @param p particle index
+     * @param src source state
+     */
+    public void storeState(int p, EpidemicState src) {
+        writeState(states, p*STATE_BYTES, src);
+    }
+
+    /**
+     * Append a state to the trajectory of the chosen particle.
+     *
+     * @param p particle index
+     * @param state state to record
+     */
+    public void recordState(int p, EpidemicState state) {
+        if (arenaSize == arenaCapacity) {
+            compactArena();
+
+            if (arenaSize == arenaCapacity)
+                throw new IllegalStateException("Off-heap trajectory storage " +
+                        "exhausted.  Increase the memory budget.");
+        }
+
+        heads.putInt(4*p, appendRecord(state, heads.getInt(4*p)));
+    }
+
+    /**
+     * Replace the ensemble with copies of the chosen ancestral particles.
+     *
+     * @param ancestors array whose pth element is the index of the particle
+     *                  that the new pth particle is to be copied from
+     */
+    public void resample(int[] ancestors) {
+        for (int p=0; p<nParticles; p++) {
+            int srcOffset = ancestors[p]*STATE_BYTES;
+            int destOffset = p*STATE_BYTES;
+            for (int b=0; b<STATE_BYTES; b+=4)
+                statesNew.putInt(destOffset + b, states.getInt(srcOffset + b));
+
+            headsNew.putInt(4*p, heads.getInt(4*ancestors[p]));
+        }
+
+        ByteBuffer tmp = states;
+        states = statesNew;
+        statesNew = tmp;
+
+        tmp = heads;
+        heads = headsNew;
+        headsNew = tmp;
+    }
+
+    /**
+     * Retrieve the trajectory recorded for the chosen particle.
+     *
+     * @param p particle index
+     * @return list of states, in order of increasing time
+     */
+    public List<EpidemicState> getTrajectory(int p) {
+        List<EpidemicState> trajectory = new ArrayList<>();
+
+        for (int idx = heads.getInt(4*p); idx >= 0; idx = getParent(idx)) {
+            EpidemicState state = new EpidemicState();
+            readState(getChunk(idx), getChunkOffset(idx), state);
+            trajectory.add(state);
+        }
+
+        Collections.reverse(trajectory);
+
+        return trajectory;
+    }
+
+    /*
+     * Arena management
+     */
+
+    private ByteBuffer getChunk(int idx) {
+        return arenaChunks.get(idx / CHUNK_RECORDS);
+    }
+
+    private int getChunkOffset(int idx) {
+        return (idx % CHUNK_RECORDS)*RECORD_BYTES;
+    }
+
+    private int getParent(int idx) {
+        return getChunk(idx).getInt(getChunkOffset(idx) + PARENT_OFFSET);
+    }
+
+    private int appendRecord(EpidemicState state, int parent) {
+        int idx = arenaSize;
+        if (idx / CHUNK_RECORDS == arenaChunks.size())
+            arenaChunks.add(allocate(Math.min(CHUNK_RECORDS, arenaCapacity - idx)*RECORD_BYTES));
+
+        ByteBuffer chunk = getChunk(idx);
+        int offset = getChunkOffset(idx);
+        writeState(chunk, offset, state);
+        chunk.putInt(offset + PARENT_OFFSET, parent);
+
+        arenaSize += 1;
+        return idx;
+    }
+
+    /**
+     * Discard arena records which are not ancestral to any current
+     * particle state, preserving the order of those that remain.
+     */
+    private void compactArena() {
+        long[] marks = new long[(arenaSize + 63)/64];
+
+        for (int p=0; p<nParticles; p++) {
+            for (int idx = heads.getInt(4*p); idx >= 0; idx = getParent(idx)) {
+                if ((marks[idx >> 6] & (1L << idx)) != 0)
+                    break;
+                marks[idx >> 6] |= 1L << idx;
+            }
+        }
+
+        int[] blockRanks = new int[marks.length];
+        for (int b=1; b<marks.length; b++)
+            blockRanks[b] = blockRanks[b-1] + Long.bitCount(marks[b-1]);
+
+        // Parents always precede their children, so records can be moved
+        // downwards in a single ascending pass.
+        int newSize = 0;
+        for (int idx=0; idx<arenaSize; idx++) {
+            if ((marks[idx >> 6] & (1L << idx)) == 0)
+                continue;
+
+            int parent = getParent(idx);
+            ByteBuffer srcChunk = getChunk(idx);
+            int srcOffset = getChunkOffset(idx);
+            ByteBuffer destChunk = getChunk(newSize);
+            int destOffset = getChunkOffset(newSize);
+            for (int b=0; b<STATE_BYTES; b+=4)
+                destChunk.putInt(destOffset + b, srcChunk.getInt(srcOffset + b));
+
+            destChunk.putInt(destOffset + PARENT_OFFSET,
+                    parent >= 0 ? rank(marks, blockRanks, parent) : -1);
+            newSize += 1;
+        }
+
+        for (int p=0; p<nParticles; p++)
+            heads.putInt(4*p, rank(marks, blockRanks, heads.getInt(4*p)));
+
+        arenaSize = newSize;
+    }
+
+    private static int rank(long[] marks, int[] blockRanks, int idx) {
+        return blockRanks[idx >> 6] + Long.bitCount(marks[idx >> 6] & ((1L << idx) - 1));
+    }
+
+    /*
+     * State serialization
+     */
+
+    private static void writeState(ByteBuffer buf, int offset, EpidemicState state) {
+        buf.putDouble(offset + S_OFFSET, state.S);
+        buf.putDouble(offset + I_OFFSET, state.I);
+        buf.putDouble(offset + R_OFFSET, state.R);
+        buf.putDouble(offset + CI_OFFSET, state.cumulativeInfections);
+        buf.putDouble(offset + TIME_OFFSET, state.time);
+        buf.putInt(offset + MODEL_IDX_OFFSET, state.modelIntervalIdx);
+        buf.putInt(offset + OBS_IDX_OFFSET, state.observedEventIdx);
+        buf.putInt(offset + ALG_OFFSET, state.algorithm != null ? state.algorithm.ordinal() : 0);
+    }
+
+    private static void readState(ByteBuffer buf, int offset, EpidemicState state) {
+        state.S = buf.getDouble(offset + S_OFFSET);
+        state.I = buf.getDouble(offset + I_OFFSET);
+        state.R = buf.getDouble(offset + R_OFFSET);
+        state.cumulativeInfections = buf.getDouble(offset + CI_OFFSET);
+        state.time = buf.getDouble(offset + TIME_OFFSET);
+        state.modelIntervalIdx = buf.getInt(offset + MODEL_IDX_OFFSET);
+        state.observedEventIdx = buf.getInt(offset + OBS_IDX_OFFSET);
+        state.algorithm = algorithms[buf.getInt(offset + ALG_OFFSET)];
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.util.Arrays;
+
+/**
+ * Constant-memory streaming estimate of a single quantile, using the P^2
+ * algorithm of Jain and Chlamtac (Commun. ACM 28:1076, 1985).  Five
+ * markers track the minimum, maximum, the desired quantile and two
+ * intermediate quantiles, with marker heights adjusted by piecewise
+ * parabolic interpolation as observations arrive.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class P2QuantileEstimator {
+
+    private final double p;
+
+    private final double[] q = new double[5];
+    private final long[] n = new long[5];
+    private final double[] np = new double[5];
+    private final double[] dn = new double[5];
+
+    private long count;
+
+    /**
+     * @param p probability of quantile to estimate
+     */
+    public P2QuantileEstimator(double p) {
+        if (p <= 0.0 || p >= 1.0)
+            throw new IllegalArgumentException("Quantile probability must lie in (0,1).");
+
+        this.p = p;
+
+        np[0] = 0; np[1] = 2*p; np[2] = 4*p; np[3] = 2 + 2*p; np[4] = 4;
+        dn[0] = 0; dn[1] = p/2; dn[2] = p; dn[3] = (1 + p)/2; dn[4] = 1;
+    }
+
+    /**
+     * Add an observation.  NaN values are ignored.
+     *
+     * @param x observed value
+     */
+    public void add(double x) {
+        if (Double.isNaN(x))
+            return;
+
+        if (count < 5) {
+            q[(int)count] = x;
+            count += 1;
+
+            if (count == 5) {
+                Arrays.sort(q);
+                for (int i=0; i<5; i++)
+                    n[i] = i;
+            }
+            return;
+        }
+
+        count += 1;
+
+        int k;
+        if (x < q[0]) {
+            q[0] = x;
+            k = 0;
+        } else if (x >= q[4]) {
+            q[4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= q[k+1])
+                k += 1;
+        }
+
+        for (int i=k+1; i<5; i++)
+            n[i] += 1;
+
+        for (int i=0; i<5; i++)
+            np[i] += dn[i];
+
+        for (int i=1; i<4; i++) {
+            double d = np[i] - n[i];
+            if ((d >= 1 && n[i+1] - n[i] > 1) || (d <= -1 && n[i-1] - n[i] < -1)) {
+                int s = d > 0 ? 1 : -1;
+
+                double qp = parabolic(i, s);
+                if (q[i-1] < qp && qp < q[i+1])
+                    q[i] = qp;
+                else
+                    q[i] += s*(q[i+s] - q[i])/(n[i+s] - n[i]);
+
+                n[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        return q[i] + s/(double)(n[i+1] - n[i-1])
+                * ((n[i] - n[i-1] + s)*(q[i+1] - q[i])/(n[i+1] - n[i])
+                + (n[i+1] - n[i] - s)*(q[i] - q[i-1])/(n[i] - n[i-1]));
+    }
+
+    /**
+     * @return number of observations added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return current quantile estimate, or NaN if there are no observations
+     */
+    public double getQuantile() {
+        if (count == 0)
+            return Double.NaN;
+
+        if (count >= 5)
+            return q[2];
+
+        // Too few observations for the markers: interpolate the sample.
+        double[] sorted = Arrays.copyOf(q, (int)count);
+        Arrays.sort(sorted);
+
+        double pos = p*(count - 1);
+        int lo = (int)Math.floor(pos);
+        int hi = Math.min(lo + 1, (int)count - 1);
+        return sorted[lo] + (pos - lo)*(sorted[hi] - sorted[lo]);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Randomised quasi-Monte Carlo random source.  A point set of fixed size
+ * is formed from the first points of the Halton sequence, randomised by
+ * random digit permutation scrambling: each digit position of each
+ * coordinate has its own uniformly random permutation of the digits of
+ * that coordinate's base.  Scrambling also removes the strong
+ * correlations between coordinates with large prime bases that make the
+ * unscrambled sequence unsuitable beyond a few dimensions.
+ *
+ * Following Gerber and Chopin (JRSS B, 2015), the first coordinate of
+ * each point is reserved for resampling.  After each randomisation the
+ * points are ordered by their first coordinate, which is available from
+ * getLeadingCoordinate().  Once a point is selected, the variates it
+ * supplies are its remaining coordinates in order, and any further
+ * variates are pseudo-random, drawn from a base source which also
+ * supplies the scrambling permutations.
+ *
+ * Each coordinate of a randomised point is marginally uniform, so
+ * estimators built from these variates keep the expectations they would
+ * have under independent uniforms.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RQMCRandomSource extends RandomSource {
+
+    private static final int[] PRIMES = {
+            2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53};
+
+    /**
+     * Maximum number of coordinates per point, including the leading
+     * coordinate.
+     */
+    public static final int MAX_DIMENSION = PRIMES.length;
+
+    private final int nPoints, dimension;
+    private final double[][] points;
+    private final int[][][] digitPermutations;
+
+    private RandomSource base;
+    private int pointIdx, coordIdx;
+
+    /**
+     * @param nPoints number of points in point set
+     * @param dimension number of coordinates of each point, including the
+     *                  leading coordinate used for resampling
+     */
+    public RQMCRandomSource(int nPoints, int dimension) {
+        this(nPoints, dimension, RandomSource.RANDOMIZER);
+    }
+
+    /**
+     * @param nPoints number of points in point set
+     * @param dimension number of coordinates of each point, including the
+     *                  leading coordinate used for resampling
+     * @param base source of scrambling permutations and pseudo-random variates
+     */
+    public RQMCRandomSource(int nPoints, int dimension, RandomSource base) {
+        if (dimension < 2 || dimension > MAX_DIMENSION)
+            throw new IllegalArgumentException("RQMC dimension must be between 2 and "
+                    + MAX_DIMENSION + ".");
+
+        this.nPoints = nPoints;
+        this.dimension = dimension;
+        this.base = base;
+
+        points = new double[nPoints][dimension];
+
+        // Scramble enough digits to reach double precision.
+        digitPermutations = new int[dimension][][];
+        for (int d=0; d<dimension; d++) {
+            int nDigits = (int)Math.ceil(53*Math.log(2)/Math.log(PRIMES[d]));
+            digitPermutations[d] = new int[nDigits][PRIMES[d]];
+        }
+
+        randomize();
+    }
+
+    /**
+     * Radical inverse of an integer in the given base.
+     *
+     * @param i integer
+     * @param base base
+     * @return radical inverse of i
+     */
+    public static double radicalInverse(int i, int base) {
+        return scrambledRadicalInverse(i, base, null);
+    }
+
+    /**
+     * Radical inverse of an integer in the given base, with the digit in
+     * each position mapped through a permutation.
+     *
+     * @param i integer
+     * @param base base
+     * @param permutations permutation for each digit position, or null
+     *                     for the unscrambled radical inverse
+     * @return scrambled radical inverse of i
+     */
+    public static double scrambledRadicalInverse(int i, int base, int[][] permutations) {
+        double result = 0.0;
+        double f = 1.0/base;
+        int nDigits = permutations != null ? permutations.length : Integer.MAX_VALUE;
+        for (int k=0; k<nDigits && (i > 0 || permutations != null); k++) {
+            int digit = i % base;
+            result += f*(permutations != null ? permutations[k][digit] : digit);
+            i /= base;
+            f /= base;
+        }
+
+        return result;
+    }
+
+    /**
+     * @param base source of scrambling permutations and pseudo-random variates
+     */
+    public void setBase(RandomSource base) {
+        this.base = base;
+    }
+
+    /**
+     * Draw new digit permutations, giving an independent randomisation of
+     * the point set, and order the points by their leading coordinate.
+     */
+    public void randomize() {
+        for (int[][] dimPermutations : digitPermutations) {
+            for (int[] perm : dimPermutations) {
+                for (int j=0; j<perm.length; j++) {
+                    int k = base.nextInt(j+1);
+                    perm[j] = perm[k];
+                    perm[k] = j;
+                }
+            }
+        }
+
+        // Unlike the unscrambled sequence, the scrambled sequence does not
+        // place its first point at the origin.
+        for (int i=0; i<nPoints; i++) {
+            for (int d=0; d<dimension; d++)
+                points[i][d] = scrambledRadicalInverse(i, PRIMES[d], digitPermutations[d]);
+        }
+        Arrays.sort(points, Comparator.comparingDouble(point -> point[0]));
+
+        coordIdx = dimension;
+    }
+
+    /**
+     * @param i index of point
+     * @return leading coordinate of point i, which increases with i
+     */
+    public double getLeadingCoordinate(int i) {
+        return points[i][0];
+    }
+
+    /**
+     * Select the point whose remaining coordinates supply the next variates.
+     *
+     * @param i index of point
+     */
+    public void setPoint(int i) {
+        pointIdx = i;
+        coordIdx = 1;
+    }
+
+    /**
+     * Discard any unused coordinates of the current point, so that all
+     * further variates are pseudo-random.
+     */
+    public void releasePoint() {
+        coordIdx = dimension;
+    }
+
+    @Override
+    public double nextDouble() {
+        if (coordIdx >= dimension)
+            return base.nextDouble();
+
+        return points[pointIdx][coordIdx++];
+    }
+}
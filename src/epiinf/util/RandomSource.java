@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import beast.base.util.GammaFunction;
+import beast.base.util.Randomizer;
+
+/**
+ * Source of random variates used when simulating particle trajectories.
+ * Subclasses need only supply uniform variates; the remaining methods
+ * transform these into draws from other distributions.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public abstract class RandomSource {
+
+    /**
+     * Source which simply defers to BEAST's global Randomizer.
+     */
+    public static final RandomSource RANDOMIZER = new RandomSource() {
+        @Override
+        public double nextDouble() {
+            return Randomizer.nextDouble();
+        }
+
+        @Override
+        public double nextExponential(double rate) {
+            return Randomizer.nextExponential(rate);
+        }
+
+        @Override
+        public long nextPoisson(double mean) {
+            return (long)Randomizer.nextPoisson(mean);
+        }
+
+        @Override
+        public int nextInt(int n) {
+            return Randomizer.nextInt(n);
+        }
+
+        @Override
+        public long nextLong() {
+            return Randomizer.nextLong();
+        }
+
+        @Override
+        public int randomChoicePDF(double[] pdf) {
+            return Randomizer.randomChoicePDF(pdf);
+        }
+    };
+
+    /**
+     * @return uniform variate on [0,1)
+     */
+    public abstract double nextDouble();
+
+    /**
+     * @param n number of values
+     * @return integer drawn uniformly from 0 to n-1
+     */
+    public int nextInt(int n) {
+        return Math.min((int)(nextDouble()*n), n-1);
+    }
+
+    /**
+     * @return 64 random bits, e.g. for seeding another source
+     */
+    public long nextLong() {
+        return ((long)(nextDouble()*0x1.0p32) << 32) ^ (long)(nextDouble()*0x1.0p32);
+    }
+
+    /**
+     * @param pdf unnormalised probabilities
+     * @return index drawn with probability proportional to its entry in pdf
+     */
+    public int randomChoicePDF(double[] pdf) {
+        double total = 0.0;
+        for (double p : pdf)
+            total += p;
+
+        double u = nextDouble()*total;
+        int last = 0;
+        for (int i=0; i<pdf.length; i++) {
+            if (pdf[i] <= 0.0)
+                continue;
+
+            u -= pdf[i];
+            if (u < 0.0)
+                return i;
+            last = i;
+        }
+
+        // Guard against rounding error in the running sum.
+        return last;
+    }
+
+    /**
+     * @param rate rate of exponential distribution
+     * @return exponentially distributed variate
+     */
+    public double nextExponential(double rate) {
+        return -Math.log(1.0 - nextDouble())/rate;
+    }
+
+    /**
+     * Draw from a Poisson distribution, using inversion for small means
+     * and the PTRS transformed rejection method of Hormann (1993) otherwise.
+     *
+     * @param mean mean of Poisson distribution
+     * @return Poisson distributed variate
+     */
+    public long nextPoisson(double mean) {
+        if (!(mean > 0.0))
+            return 0;
+
+        if (mean < 10.0) {
+            double p = Math.exp(-mean);
+            double cdf = p;
+            double u = nextDouble();
+            long k = 0;
+            while (u > cdf && p > 0.0) {
+                k += 1;
+                p *= mean/k;
+                cdf += p;
+            }
+            return k;
+        }
+
+        double smu = Math.sqrt(mean);
+        double b = 0.931 + 2.53*smu;
+        double a = -0.059 + 0.02483*b;
+        double invAlpha = 1.1239 + 1.1328/(b - 3.4);
+        double vr = 0.9277 - 3.6224/(b - 2.0);
+        double logMean = Math.log(mean);
+
+        while (true) {
+            double U = nextDouble() - 0.5;
+            double V = nextDouble();
+            double us = 0.5 - Math.abs(U);
+            long k = (long)Math.floor((2.0*a/us + b)*U + mean + 0.43);
+
+            if (us >= 0.07 && V <= vr)
+                return k;
+
+            if (k < 0 || (us < 0.013 && V > us))
+                continue;
+
+            if (Math.log(V) + Math.log(invAlpha) - Math.log(a/(us*us) + b)
+                    <= -mean + k*logMean - GammaFunction.lnGamma(k + 1.0))
+                return k;
+        }
+    }
+
+    /**
+     * Stirling series remainders ln(k!) - [(k+1/2)ln(k+1) - (k+1) + ln(2pi)/2]
+     * for k < 10.
+     */
+    private static final double[] STIRLING_TAIL = {
+            0.08106146679532726, 0.04134069595540929, 0.02767792568499834,
+            0.02079067210376509, 0.01664469118982119, 0.01387612882307075,
+            0.01189670994589177, 0.01041126526197209, 0.009255462182712733,
+            0.008330563433362871};
+
+    private static double stirlingTail(long k) {
+        if (k < STIRLING_TAIL.length)
+            return STIRLING_TAIL[(int)k];
+
+        double kp1sq = (k + 1.0)*(k + 1.0);
+        return (1.0/12 - (1.0/360 - 1.0/1260/kp1sq)/kp1sq)/(k + 1.0);
+    }
+
+    /**
+     * Draw from a binomial distribution, using inversion when fewer than
+     * 10 successes or failures are expected and the BTRD transformed
+     * rejection method of Hormann (1993) otherwise.  The expected cost is
+     * bounded independently of n.
+     *
+     * @param n number of trials
+     * @param p success probability
+     * @return binomially distributed variate
+     */
+    public long nextBinomial(long n, double p) {
+        if (n <= 0 || !(p > 0.0))
+            return 0;
+
+        if (p >= 1.0)
+            return n;
+
+        if (p > 0.5)
+            return n - nextBinomial(n, 1.0 - p);
+
+        if (n*p < 10.0) {
+            double q = 1.0 - p;
+            double s = p/q;
+            double a = (n + 1)*s;
+
+            while (true) {
+                double r = Math.pow(q, n);
+                double u = nextDouble();
+                long k = 0;
+                while (u > r) {
+                    u -= r;
+                    k += 1;
+                    if (k > n)
+                        break;
+                    r *= a/k - s;
+                }
+
+                // Retry on the rare occasion that rounding error
+                // exhausts the distribution.
+                if (k <= n)
+                    return k;
+            }
+        }
+
+        double q = 1.0 - p;
+        double npq = n*p*q;
+        double spq = Math.sqrt(npq);
+        double b = 1.15 + 2.53*spq;
+        double a = -0.0873 + 0.0248*b + 0.01*p;
+        double c = n*p + 0.5;
+        double alpha = (2.83 + 5.1/b)*spq;
+        double vr = 0.92 - 4.2/b;
+        double urvr = 0.86*vr;
+
+        long m = (long)Math.floor((n + 1)*p);
+        double r = p/q;
+        double nr = (n + 1)*r;
+
+        while (true) {
+            double u, v = nextDouble();
+
+            if (v <= urvr) {
+                u = v/vr - 0.43;
+                return (long)Math.floor((2.0*a/(0.5 - Math.abs(u)) + b)*u + c);
+            }
+
+            if (v >= vr) {
+                u = nextDouble() - 0.5;
+            } else {
+                u = v/vr - 0.93;
+                u = Math.signum(u)*0.5 - u;
+                v = nextDouble()*vr;
+            }
+
+            double us = 0.5 - Math.abs(u);
+            long k = (long)Math.floor((2.0*a/us + b)*u + c);
+            if (k < 0 || k > n)
+                continue;
+
+            v = v*alpha/(a/(us*us) + b);
+            long km = Math.abs(k - m);
+
+            if (km <= 15) {
+                // Evaluate f(k)/f(m) recursively
+                double f = 1.0;
+                if (m < k) {
+                    for (long i=m+1; i<=k; i++)
+                        f *= nr/i - r;
+                } else if (m > k) {
+                    for (long i=k+1; i<=m; i++)
+                        v *= nr/i - r;
+                }
+
+                if (v <= f)
+                    return k;
+
+                continue;
+            }
+
+            // Squeeze using upper and lower bounds on log(f(k))
+            v = Math.log(v);
+            double rho = (km/npq)*(((km/3.0 + 0.625)*km + 1.0/6.0)/npq + 0.5);
+            double t = -km*(double)km/(2.0*npq);
+            if (v < t - rho)
+                return k;
+            if (v > t + rho)
+                continue;
+
+            double nm = n - m + 1;
+            double h = (m + 0.5)*Math.log((m + 1)/(r*nm))
+                    + stirlingTail(m) + stirlingTail(n - m);
+
+            double nk = n - k + 1;
+            if (v <= h + (n + 1)*Math.log(nm/nk)
+                    + (k + 0.5)*Math.log(nk*r/(k + 1))
+                    - stirlingTail(k) - stirlingTail(n - k))
+                return k;
+        }
+    }
+}
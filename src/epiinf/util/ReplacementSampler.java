@@ -14,8 +14,6 @@ package epiinf.util;
  *
  *                 http://www.keithschwarz.com/darts-dice-coins/
  */
-import beast.base.util.Randomizer;
-
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
@@ -120,11 +118,21 @@ public final class ReplacementSampler {
      * @return A random value sampled from the underlying distribution.
      */
     public int next() {
+        return next(RandomSource.RANDOMIZER);
+    }
+
+    /**
+     * Samples a value from the underlying distribution.
+     *
+     * @param random source of random variates
+     * @return A random value sampled from the underlying distribution.
+     */
+    public int next(RandomSource random) {
         // Generate a fair die roll to determine which column to inspect.
-        int column = Randomizer.nextInt(probability.length);
+        int column = random.nextInt(probability.length);
 
         // Generate a biased coin toss to determine which option to pick.
-        boolean coinToss = Randomizer.nextDouble() < probability[column];
+        boolean coinToss = random.nextDouble() < probability[column];
 
         // Based on the outcome, return either the column or its alias.
         return coinToss? column : alias[column];
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+/**
+ * Small, fast random source (SplitMix64) whose entire state is a single
+ * long.  Because a stream is completely determined by its seed, seeding
+ * from a (key, index, index) triple allows any particular stream to be
+ * regenerated later without storing any of its output.
+ *
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class SeededRandomSource extends RandomSource {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    public SeededRandomSource() { }
+
+    public SeededRandomSource(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * Reset stream to the start of the sequence defined by the given seed.
+     *
+     * @param seed seed
+     */
+    public void setSeed(long seed) {
+        state = seed;
+    }
+
+    /**
+     * Reset stream to the start of the sequence identified by a key and
+     * a pair of indices.
+     *
+     * @param key base seed
+     * @param i first index
+     * @param j second index
+     */
+    public void setSeed(long key, int i, int j) {
+        state = mix(mix(key + GOLDEN_GAMMA*i) + GOLDEN_GAMMA*j);
+    }
+
+    @Override
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.distribs.SMCTreeDensity;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SISModel;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class IteratedFilteringEstimatorTest {
+
+    /**
+     * @param infectionRate starting infection rate
+     * @return density of tree simulated under an SIS model with an
+     * infection rate of 0.02
+     */
+    private static SMCTreeDensity getSISDensity(double infectionRate) {
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter(String.valueOf(infectionRate)),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 50);
+
+        return density;
+    }
+
+    @Test
+    public void testEstimate() throws Exception {
+        Randomizer.setSeed(42);
+
+        List<SMCTreeDensity> densities = new ArrayList<>();
+        for (int w=0; w<2; w++)
+            densities.add(getSISDensity(0.04));
+
+        File outFile = File.createTempFile("if2", ".txt");
+        outFile.deleteOnExit();
+
+        // S0 is confounded with the infection rate on a tree this small,
+        // so is fixed at its true value.
+        IteratedFilteringEstimator estimator = new IteratedFilteringEstimator();
+        estimator.initByName(
+                "treeDensity", densities,
+                "parameterNames", "infectionRate origin S0",
+                "profileParameter", "S0",
+                "profileValues", new RealParameter("99"),
+                "nParameterParticles", 100,
+                "nIterations", 30,
+                "perturbationSD", 0.1,
+                "coolingFactor", 0.9,
+                "fileName", outFile.getPath());
+
+        // The origin fixes the timing of events and S0 the initial state,
+        // so neither may be perturbed while a filter is in progress.
+        assertFalse(estimator.initialValueOnly[0]);
+        assertTrue(estimator.initialValueOnly[1]);
+        assertTrue(estimator.initialValueOnly[2]);
+
+        ExecutorService executor = Executors.newFixedThreadPool(densities.size());
+        double[] estimate;
+        try {
+            estimate = estimator.estimate(executor, estimator.getStartingValues(), 0, null);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Infection rate estimate: " + estimate[0]);
+
+        assertTrue(estimate[0] > 0.013 && estimate[0] < 0.03);
+    }
+}
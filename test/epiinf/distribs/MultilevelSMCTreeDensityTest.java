@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.distribs;
+
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import epiinf.models.EpidemicModel;
+import epiinf.models.SISModel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class MultilevelSMCTreeDensityTest {
+
+    private static MultilevelSMCTreeDensity getSISDensity() {
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity fineDensity = new SMCTreeDensity();
+        fineDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100);
+
+        // Long leaps, so that the coarse level is noticeably biased.
+        SMCTreeDensity coarseDensity = new SMCTreeDensity();
+        coarseDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100,
+                "useTauLeaping", true,
+                "minLeapCount", 10,
+                "tauLeapingEpsilon", 0.0);
+
+        MultilevelSMCTreeDensity density = new MultilevelSMCTreeDensity();
+        density.initByName(
+                "coarseDensity", coarseDensity,
+                "fineDensity", fineDensity);
+
+        return density;
+    }
+
+    @Test
+    public void testCoupling() throws Exception {
+        Randomizer.setSeed(42);
+
+        MultilevelSMCTreeDensity density = getSISDensity();
+
+        int nReps = 100;
+        double[] fineLogP = new double[nReps], coarseLogP = new double[nReps];
+        double[] result = new double[2];
+        for (int r=0; r<nReps; r++) {
+            density.calculateCoupledLogP(result);
+            fineLogP[r] = result[0];
+            coarseLogP[r] = result[1];
+        }
+
+        double meanFine = 0.0, meanCoarse = 0.0;
+        for (int r=0; r<nReps; r++) {
+            meanFine += fineLogP[r]/nReps;
+            meanCoarse += coarseLogP[r]/nReps;
+        }
+
+        double cov = 0.0, varFine = 0.0, varCoarse = 0.0;
+        for (int r=0; r<nReps; r++) {
+            cov += (fineLogP[r] - meanFine)*(coarseLogP[r] - meanCoarse);
+            varFine += (fineLogP[r] - meanFine)*(fineLogP[r] - meanFine);
+            varCoarse += (coarseLogP[r] - meanCoarse)*(coarseLogP[r] - meanCoarse);
+        }
+        double corr = cov/Math.sqrt(varFine*varCoarse);
+
+        System.out.println("Correlation of coupled estimates: " + corr);
+
+        assertTrue(corr > 0.5);
+    }
+
+    @Test
+    public void testMultilevelDensity() throws Exception {
+        Randomizer.setSeed(42);
+
+        MultilevelSMCTreeDensity density = getSISDensity();
+
+        int nReps = 100;
+        double[] logP = new double[nReps];
+        double maxLogP = Double.NEGATIVE_INFINITY;
+        for (int r=0; r<nReps; r++) {
+            logP[r] = density.calculateLogP();
+            maxLogP = Math.max(maxLogP, logP[r]);
+        }
+
+        double mean = 0.0;
+        for (int r=0; r<nReps; r++)
+            mean += Math.exp(logP[r] - maxLogP)/nReps;
+
+        double logPmean = maxLogP + Math.log(mean);
+        double logPtrue = -34.87;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logPmean);
+
+        assertTrue(Math.abs(logPmean - logPtrue) < 0.1);
+    }
+}
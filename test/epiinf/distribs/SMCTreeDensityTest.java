@@ -20,10 +20,16 @@ package epiinf.distribs;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
 import beast.base.evolution.tree.TreeParser;
+import epiinf.DerivedTrajectorySeries;
+import epiinf.EpidemicState;
+import epiinf.EpidemicTrajectory;
+import epiinf.ModelEvent;
+import epiinf.ObservedEvent;
 import epiinf.models.EpidemicModel;
 import epiinf.models.SIRModel;
 import epiinf.models.SISModel;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -120,6 +126,57 @@ public class SMCTreeDensityTest {
         assertTrue(Math.abs(logP-logPtrue)<0.1);
     }
 
+    @org.junit.Test
+    public void testSISTreeDensitySerialAlive() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 10000,
+                "useAliveFilter", true);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -34.87;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.2);
+    }
+
     @org.junit.Test
     public void testSISTreeDensitySerialLeap() throws Exception {
 
@@ -172,6 +229,320 @@ public class SMCTreeDensityTest {
     }
 
 
+    @org.junit.Test
+    public void testSISTreeDensitySerialBinomialLeap() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "origin", new RealParameter("4.96590947152"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 10000,
+                "useTauLeaping", true,
+                "useBinomialLeaping", true);
+
+        double logP = density.calculateLogP();
+        double logPtrue = -34.87;
+
+        System.out.println("Truth: " + logPtrue);
+        System.out.println("Estimate: " + logP);
+
+        assertTrue(Math.abs(logP-logPtrue)<0.5);
+    }
+
+
+    @org.junit.Test
+    public void testSISTreeDensitySerialIncremental() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000);
+
+        Randomizer.setSeed(42);
+        double logP = density.calculateLogP();
+
+        // Incremental evaluation, saving and restoring the filter state
+        // part way through, consumes the same random numbers.
+        Randomizer.setSeed(42);
+        int nEvents = density.startIncrementalLogP();
+        double incrementalLogP = 0.0;
+        for (int i=0; i<nEvents; i++) {
+            incrementalLogP = density.advanceIncrementalLogP();
+
+            if (i == nEvents/2) {
+                SMCTreeDensity.FilterState state = density.saveFilterState();
+                density.startIncrementalLogP();
+                density.restoreFilterState(state);
+            }
+        }
+
+        System.out.println("Full: " + logP);
+        System.out.println("Incremental: " + incrementalLogP);
+
+        assertTrue(nEvents > 0);
+        assertTrue(Math.abs(logP-incrementalLogP)<1e-10);
+    }
+
+    @org.junit.Test
+    public void testSISTreeDensitySerialOffHeap() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000);
+
+        SMCTreeDensity offHeapDensity = new SMCTreeDensity();
+        offHeapDensity.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 1000,
+                "offHeapMemoryBudget", 64);
+
+        // Both storage schemes consume the same random numbers.
+        Randomizer.setSeed(42);
+        double logP = density.calculateLogP();
+        int nStates = density.getLastEvaluatedTrajectory().getStateList().size();
+
+        Randomizer.setSeed(42);
+        double offHeapLogP = offHeapDensity.calculateLogP();
+        int offHeapNStates = offHeapDensity.getLastEvaluatedTrajectory().getStateList().size();
+
+        System.out.println("On heap: " + logP);
+        System.out.println("Off heap: " + offHeapLogP);
+
+        assertTrue(Math.abs(logP-offHeapLogP)<1e-10);
+        assertTrue(nStates == offHeapNStates);
+    }
+
+    @org.junit.Test
+    public void testLastEvaluatedDerivedSeries() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        RealParameter infectionRate = new RealParameter("0.02");
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", new RealParameter("4.96590947152"),
+                "S0", new RealParameter("99"),
+                "infectionRate", infectionRate,
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100,
+                "trajectoryRecordingMode", SMCTreeDensity.TrajectoryRecordingMode.OBSERVED_EVENTS);
+        density.requireLastEvaluatedTrajectory();
+
+        Randomizer.setSeed(42);
+        density.calculateLogP();
+        density.accept();
+
+        // Evaluation of a proposal which is then rejected.
+        infectionRate.setValue(0.04);
+        model.makeDirty();
+        density.calculateLogP();
+        EpidemicTrajectory traj = density.getLastEvaluatedTrajectory();
+        DerivedTrajectorySeries expected = new DerivedTrajectorySeries(model, traj.getStateList());
+
+        infectionRate.setValue(0.02);
+        model.makeDirty();
+        density.restore();
+
+        // Series must be those of the parameters under which the rejected
+        // trajectory was generated.
+        assertTrue(density.getLastEvaluatedTrajectory() == traj);
+        assertArrayEquals(expected.incidence, density.getDerivedSeries(traj).incidence, 0.0);
+
+        DerivedTrajectorySeries current = new DerivedTrajectorySeries(model, traj.getStateList());
+        assertTrue(current.incidence[1] != expected.incidence[1]);
+
+        // The conditioned trajectory keeps the series of the accepted state.
+        EpidemicTrajectory conditioned = density.getConditionedTrajectory();
+        assertTrue(conditioned != traj);
+        assertArrayEquals(new DerivedTrajectorySeries(model, conditioned.getStateList()).incidence,
+                density.getDerivedSeries(conditioned).incidence, 0.0);
+    }
+
+    @org.junit.Test
+    public void testRejectedSnapshotTrajectory() throws Exception {
+
+        TreeParser tree = new TreeParser(
+                "(t19:0.5728982259951056,(t1:4.682548468426976,((((t13:0.1" +
+                        "5140665947746434,t7:1.1107091305509993):1.8687945" +
+                        "24893283,(((t3:1.2033210062102193,t0:1.5052311752" +
+                        "862582):1.979155438506392,(t11:1.6751090237003017" +
+                        ",t5:2.520636526974794):0.21768909221243238):0.383" +
+                        "3431620211192,(t9:2.0664574891912832,t16:0.323283" +
+                        "6660847038):0.5630070543827079):0.162464953866913" +
+                        "4):0.4307319096416098,t14:2.0835649148745947):0.2" +
+                        "091271957282972,(t2:4.036974668854562,((t17:0.620" +
+                        "0967311580277,(t18:0.5326159975392679,(t12:1.7242" +
+                        "66814761453,((t10:1.5764794559811675,t8:1.7898943" +
+                        "65128709):0.5901428139973652,t15:0.81544003887419" +
+                        "74):0.05238068412529273):0.007416803235933855):0." +
+                        "008158146264380939):0.11241136563363074,(t6:2.254" +
+                        "2045996975584,t4:2.809463362774489):0.56243066627" +
+                        "73919):0.502771737926837):0.4410902670875849):0.0" +
+                        "4714580222573783):0.06274869721383691):0.18596113" +
+                        "70305343;", false, false, true, 0);
+
+        RealParameter origin = new RealParameter("4.96590947152");
+        EpidemicModel model = new SISModel();
+        model.initByName(
+                "origin", origin,
+                "S0", new RealParameter("99"),
+                "infectionRate", new RealParameter("0.02"),
+                "recoveryRate", new RealParameter("0.1"),
+                "psiSamplingVariable", new RealParameter("0.1"),
+                "removalProb", new RealParameter("1.0"));
+
+        SMCTreeDensity density = new SMCTreeDensity();
+        density.initByName(
+                "tree", tree,
+                "model", model,
+                "finalTreeSampleOffset", new RealParameter("0.0"),
+                "nParticles", 100,
+                "trajectoryRecordingMode", SMCTreeDensity.TrajectoryRecordingMode.OBSERVED_EVENTS);
+
+        Randomizer.setSeed(42);
+        density.calculateLogP();
+        density.accept();
+        EpidemicTrajectory conditioned = density.getConditionedTrajectory();
+
+        // Evaluation of a proposal which is then rejected before its
+        // trajectory is drawn.
+        origin.setValue(5.5);
+        model.makeDirty();
+        density.calculateLogP();
+
+        origin.setValue(4.96590947152);
+        model.makeDirty();
+        density.restore();
+
+        // The rejected snapshots cannot be traced using the restored
+        // parameters, so the conditioned trajectory is reported instead.
+        assertTrue(density.getLastEvaluatedTrajectory() == conditioned);
+        assertTrue(conditioned.getOrigin() == 4.96590947152);
+    }
+
     @org.junit.Test
     public void testSIRTreeDensityContemp() throws Exception {
 
@@ -320,4 +691,118 @@ public class SMCTreeDensityTest {
         assertTrue(Math.abs(logP-logPtrue)<0.1);
     }
 
+    @org.junit.Test
+    public void testSIRIncidenceDensityRQMC() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("6.0"),
+                "S0", new RealParameter("199"),
+                "infectionRate", new RealParameter("0.01"),
+                "recoveryRate", new RealParameter("0.6"),
+                "psiSamplingVariable", new RealParameter("0.2"),
+                "removalProb", new RealParameter("1.0"));
+
+        RealParameter incidence = new RealParameter("0.1 0.5 0.9 1.3 1.4 2.0 2.5 3.0 3.1 4.2");
+
+        int nReps = 200;
+        double[] mean = new double[2], var = new double[2];
+        for (int i=0; i<2; i++) {
+            SMCTreeDensity density = new SMCTreeDensity();
+            density.initByName(
+                    "model", model,
+                    "incidenceParameter", incidence,
+                    "finalTreeSampleOffset", new RealParameter("0.0"),
+                    "nParticles", 100,
+                    "useRQMC", i == 1);
+
+            double sum = 0.0, sumSq = 0.0;
+            for (int r=0; r<nReps; r++) {
+                double logP = density.calculateLogP();
+                sum += logP;
+                sumSq += logP*logP;
+            }
+            mean[i] = sum/nReps;
+            var[i] = sumSq/nReps - mean[i]*mean[i];
+        }
+
+        System.out.println("Plain SMC: mean " + mean[0] + ", variance " + var[0]);
+        System.out.println("RQMC: mean " + mean[1] + ", variance " + var[1]);
+
+        assertTrue(var[1] < 0.8*var[0]);
+        assertTrue(Math.abs(mean[1]-mean[0]) < 0.2);
+    }
+
+    @org.junit.Test
+    public void testUnsequencedSampleBatch() throws Exception {
+
+        Randomizer.setSeed(42);
+
+        EpidemicModel model = new SIRModel();
+        model.initByName(
+                "origin", new RealParameter("6.0"),
+                "S0", new RealParameter("199"),
+                "infectionRate", new RealParameter("0.01"),
+                "recoveryRate", new RealParameter("0.6"),
+                "psiSamplingVariable", new RealParameter("0.2"),
+                "removalProb", new RealParameter("0.4"));
+
+        RealParameter incidence = new RealParameter("1.0");
+
+        ObservedEvent event = new ObservedEvent();
+        event.type = ObservedEvent.Type.UNSEQUENCED_SAMPLE;
+        event.time = 1.0;
+        event.multiplicity = 6;
+
+        ModelEvent modelEvent = new ModelEvent();
+        modelEvent.type = ModelEvent.Type.RATE_CHANGE;
+        modelEvent.time = 10.0;
+
+        // Expected weight of a batch of 6 samples from a prevalence of 10,
+        // split by the prevalence remaining afterwards, estimated using the
+        // sample-by-sample loop and the Rao-Blackwellised batch update.
+        int nReps = 100000;
+        double[][] expectedWeights = new double[2][11];
+        double[] batchLogWeights = new double[11];
+        boolean batchLogWeightsVary = false;
+        for (int i=0; i<2; i++) {
+            SMCTreeDensity density = new SMCTreeDensity();
+            density.initByName(
+                    "model", model,
+                    "incidenceParameter", incidence,
+                    "finalTreeSampleOffset", new RealParameter("0.0"),
+                    "nParticles", 1,
+                    "raoBlackwelliseSampling", i == 1);
+
+            for (int r=0; r<nReps; r++) {
+                EpidemicState state = new EpidemicState(189, 10, 0);
+                double logWeight = density.getObservedEventProbability(state,
+                        event, event.time, modelEvent, modelEvent.time);
+                int I = (int)Math.round(state.I);
+                expectedWeights[i][I] += Math.exp(logWeight)/nReps;
+
+                // The batch update integrates out everything but the
+                // number of removals.
+                if (i == 1) {
+                    if (batchLogWeights[I] != 0.0 && Math.abs(logWeight - batchLogWeights[I]) > 1e-10)
+                        batchLogWeightsVary = true;
+                    batchLogWeights[I] = logWeight;
+                }
+            }
+        }
+
+        double total = 0.0;
+        for (int I=4; I<=10; I++) {
+            System.out.println("I=" + I + ": sequential " + expectedWeights[0][I]
+                    + ", batch " + expectedWeights[1][I]);
+            total += expectedWeights[0][I];
+        }
+
+        for (int I=4; I<=10; I++)
+            assertTrue(Math.abs(expectedWeights[1][I] - expectedWeights[0][I]) < 0.01*total);
+
+        assertTrue(!batchLogWeightsVary);
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import epiinf.EpidemicTrajectory;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class BinaryTrajectoryLogTest {
+
+    private static final String[] COLUMNS = {"age", "S", "I", "R"};
+
+    private static double[][] makeColumns(int sample, int nStates) {
+        double[][] columns = new double[COLUMNS.length][nStates];
+        for (int i=0; i<nStates; i++) {
+            columns[0][i] = 10.0 - i;
+            columns[1][i] = 100 - sample - i;
+            columns[2][i] = sample + i;
+            columns[3][i] = i;
+        }
+        return columns;
+    }
+
+    private static File writeLog(boolean compress) throws Exception {
+        File file = File.createTempFile("trajectories", ".bin");
+        file.deleteOnExit();
+
+        try (BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(file, COLUMNS, compress)) {
+            for (int s=0; s<20; s++)
+                writer.writeSample(1000*s, 10.0, s+1, makeColumns(s, s+1));
+        }
+
+        return file;
+    }
+
+    private static void checkLog(File file, int nRecords) throws Exception {
+        try (BinaryTrajectoryReader reader = new BinaryTrajectoryReader(file)) {
+            assertArrayEquals(COLUMNS, reader.getColumnNames());
+            assertEquals(nRecords, reader.getRecordCount());
+
+            // Read in reverse order to exercise random access.
+            for (int r=nRecords-1; r>=0; r--) {
+                assertEquals(1000*r, reader.getSample(r));
+                assertEquals(10.0, reader.getOrigin(r), 0.0);
+
+                double[][] expected = makeColumns(r, r+1);
+                double[][] columns = reader.readColumns(r);
+                for (int c=0; c<COLUMNS.length; c++) {
+                    assertArrayEquals(expected[c], columns[c], 0.0);
+                    assertArrayEquals(expected[c], reader.readColumn(r, COLUMNS[c]), 0.0);
+                }
+
+                EpidemicTrajectory traj = reader.readTrajectory(r);
+                assertEquals(r+1, traj.getStateList().size());
+                assertEquals(0.0, traj.getStateList().get(0).time, 0.0);
+                assertEquals(expected[2][r], traj.getStateList().get(r).I, 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        checkLog(writeLog(false), 20);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        checkLog(writeLog(true), 20);
+    }
+
+    @Test
+    public void testMissingIndex() throws Exception {
+        File file = writeLog(true);
+
+        // Remove index, trailer and part of the final record, as would
+        // happen if the writing process were killed.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long indexBytes = 8 + 16*20 + BinaryTrajectoryWriter.TRAILER_BYTES;
+            raf.setLength(raf.length() - indexBytes - 5);
+        }
+
+        checkLog(file, 19);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOversizedRecord() throws Exception {
+        File file = File.createTempFile("trajectories", ".bin");
+        file.deleteOnExit();
+
+        // 8*4*nStates overflows an int; must be rejected before any
+        // column is read or buffer allocated.
+        try (BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(file, COLUMNS, false)) {
+            writer.writeSample(0, 10.0, Integer.MAX_VALUE/16, new double[COLUMNS.length][0]);
+        }
+    }
+}
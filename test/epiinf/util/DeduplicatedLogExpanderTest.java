@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class DeduplicatedLogExpanderTest {
+
+    private static String expand(String log) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(bytes, true, "UTF-8")) {
+            DeduplicatedLogExpander.expand(new BufferedReader(new StringReader(log)), out);
+        }
+
+        return bytes.toString("UTF-8").replace(System.lineSeparator(), "\n");
+    }
+
+    @Test
+    public void testBackReferenceAfterNA() throws Exception {
+        String log = "# comment\n"
+                + "Sample\ttrajectory\tposterior\n"
+                + "0\t1:2:3\t-10.0\n"
+                + "1000\tNA\t-11.0\n"
+                + "2000\t@0\t-12.0\n"
+                + "3000\t4:5:6\t-13.0\n"
+                + "4000\t@3000\t-14.0\n";
+
+        String expected = "# comment\n"
+                + "Sample\ttrajectory\tposterior\n"
+                + "0\t1:2:3\t-10.0\n"
+                + "1000\tNA\t-11.0\n"
+                + "2000\t1:2:3\t-12.0\n"
+                + "3000\t4:5:6\t-13.0\n"
+                + "4000\t4:5:6\t-14.0\n";
+
+        assertEquals(expected, expand(log));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class P2QuantileEstimatorTest {
+
+    @Test
+    public void testNormalQuantiles() {
+        Random random = new Random(42);
+
+        P2QuantileEstimator lower = new P2QuantileEstimator(0.025);
+        P2QuantileEstimator median = new P2QuantileEstimator(0.5);
+        P2QuantileEstimator upper = new P2QuantileEstimator(0.975);
+
+        for (int i=0; i<100000; i++) {
+            double x = random.nextGaussian();
+            lower.add(x);
+            median.add(x);
+            upper.add(x);
+        }
+
+        assertEquals(-1.96, lower.getQuantile(), 0.05);
+        assertEquals(0.0, median.getQuantile(), 0.02);
+        assertEquals(1.96, upper.getQuantile(), 0.05);
+    }
+
+    @Test
+    public void testFewObservations() {
+        P2QuantileEstimator median = new P2QuantileEstimator(0.5);
+        median.add(3.0);
+        median.add(Double.NaN);
+        median.add(1.0);
+        median.add(2.0);
+
+        assertEquals(3, median.getCount());
+        assertEquals(2.0, median.getQuantile(), 0.0);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 Tim Vaughan <tgvaughan@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package epiinf.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Tim Vaughan <tgvaughan@gmail.com>
+ */
+public class RandomSourceTest {
+
+    private static RandomSource seededSource(long seed) {
+        Random random = new Random(seed);
+        return new RandomSource() {
+            @Override
+            public double nextDouble() {
+                return random.nextDouble();
+            }
+        };
+    }
+
+    private static void checkBinomialMoments(RandomSource source, long n, double p) {
+        int N = 200000;
+        double sum = 0.0, sumSq = 0.0;
+        for (int i=0; i<N; i++) {
+            long k = source.nextBinomial(n, p);
+            assertTrue(k >= 0 && k <= n);
+            sum += k;
+            sumSq += (double)k*k;
+        }
+
+        double mean = sum/N;
+        double var = sumSq/N - mean*mean;
+        double expectedVar = n*p*(1.0-p);
+
+        assertEquals(n*p, mean, 5.0*Math.sqrt(expectedVar/N));
+        assertEquals(expectedVar, var, 0.02*expectedVar);
+    }
+
+    @Test
+    public void testBinomialMoments() {
+        RandomSource source = seededSource(42);
+
+        checkBinomialMoments(source, 20, 0.3);          // Inversion
+        checkBinomialMoments(source, 100, 0.4);         // BTRD, recursive evaluation
+        checkBinomialMoments(source, 10000000, 0.01);   // BTRD, squeeze
+        checkBinomialMoments(source, 1000, 0.9);        // Reflection
+    }
+
+    @Test
+    public void testBinomialDistribution() {
+        RandomSource source = seededSource(53);
+
+        int n = 60, N = 400000;
+        double p = 0.35;
+        int[] counts = new int[n+1];
+        for (int i=0; i<N; i++)
+            counts[(int)source.nextBinomial(n, p)] += 1;
+
+        double logPk = n*Math.log(1.0-p);
+        for (int k=0; k<=n; k++) {
+            if (k > 0)
+                logPk += Math.log((n - k + 1.0)/k) + Math.log(p/(1.0-p));
+
+            double expected = N*Math.exp(logPk);
+            assertEquals(expected, counts[k], 5.0*Math.sqrt(expected) + 1.0);
+        }
+    }
+
+    @Test
+    public void testBinomialEdgeCases() {
+        RandomSource source = seededSource(1);
+
+        assertEquals(0, source.nextBinomial(0, 0.5));
+        assertEquals(0, source.nextBinomial(100, 0.0));
+        assertEquals(100, source.nextBinomial(100, 1.0));
+    }
+
+    @Test
+    public void testRandomChoicePDF() {
+        RandomSource source = seededSource(7);
+
+        double[] pdf = {0.5, 0.0, 2.0, 1.5};
+        int N = 400000;
+        int[] counts = new int[pdf.length];
+        for (int i=0; i<N; i++)
+            counts[source.randomChoicePDF(pdf)] += 1;
+
+        for (int k=0; k<pdf.length; k++) {
+            double expected = N*pdf[k]/4.0;
+            assertEquals(expected, counts[k], 5.0*Math.sqrt(expected) + 1.0);
+        }
+    }
+}